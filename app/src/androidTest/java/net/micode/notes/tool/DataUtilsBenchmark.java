@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Timings of the id set operations of {@link DataUtils} and of single note updates, at 1k,
+ * 10k and 100k notes. The results go to the log under {@link #TAG} and to the instrumentation
+ * status, e.g. "delete_10000_ms".
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class DataUtilsBenchmark {
+    private static final String TAG = "DataUtilsBenchmark";
+
+    // notes updated one by one for the update throughput, the rest only fill the database
+    private static final int UPDATE_COUNT = 1000;
+
+    @Test
+    public void notes1k() {
+        run(1000);
+    }
+
+    @Test
+    public void notes10k() {
+        run(10000);
+    }
+
+    @Test
+    public void notes100k() {
+        run(100000);
+    }
+
+    private void run(int count) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ContentResolver resolver = context.getContentResolver();
+        long folderId = TestNotes.createFolder(resolver, TAG);
+        long targetFolderId = TestNotes.createFolder(resolver, TAG + " target");
+        Bundle results = new Bundle();
+        try {
+            long start = SystemClock.elapsedRealtime();
+            HashSet<Long> ids = TestNotes.createNotes(resolver, folderId, count);
+            report(results, "insert", count, SystemClock.elapsedRealtime() - start);
+            assertEquals(count, ids.size());
+
+            start = SystemClock.elapsedRealtime();
+            int updates = updateNotes(resolver, ids);
+            long updateMs = SystemClock.elapsedRealtime() - start;
+            report(results, "update", count, updateMs);
+            results.putFloat("update_" + count + "_per_second", updates * 1000f
+                    / Math.max(updateMs, 1));
+
+            start = SystemClock.elapsedRealtime();
+            assertTrue(DataUtils.batchMoveToFolder(resolver, ids, targetFolderId));
+            report(results, "move", count, SystemClock.elapsedRealtime() - start);
+
+            start = SystemClock.elapsedRealtime();
+            assertTrue(DataUtils.batchDeleteNotes(resolver, ids));
+            report(results, "delete", count, SystemClock.elapsedRealtime() - start);
+            assertEquals(0, TestNotes.getNoteIds(resolver, targetFolderId).size());
+        } finally {
+            TestNotes.removeFolder(context, folderId);
+            TestNotes.removeFolder(context, targetFolderId);
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    /**
+     * Update some of the notes one at a time, the way the editor saves a note
+     */
+    private int updateNotes(ContentResolver resolver, HashSet<Long> ids) {
+        int updates = 0;
+        Iterator<Long> iter = ids.iterator();
+        while (iter.hasNext() && updates < UPDATE_COUNT) {
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.SNIPPET, "updated " + updates);
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, iter.next()),
+                    values, null, null);
+            updates++;
+        }
+        return updates;
+    }
+
+    private static void report(Bundle results, String operation, int count, long ms) {
+        Log.i(TAG, operation + " with " + count + " notes: " + ms + "ms");
+        results.putLong(operation + "_" + count + "_ms", ms);
+    }
+}
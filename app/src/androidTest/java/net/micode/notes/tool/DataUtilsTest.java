@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+
+/**
+ * The id set operations of {@link DataUtils}, with more ids than fit one statement
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataUtilsTest {
+    // more than two chunks of 500 ids, the last one partly filled
+    private static final int NOTE_COUNT = 1201;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private long mFolderId;
+
+    private long mTargetFolderId;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mFolderId = TestNotes.createFolder(mResolver, "DataUtilsTest");
+        mTargetFolderId = TestNotes.createFolder(mResolver, "DataUtilsTest target");
+    }
+
+    @After
+    public void tearDown() {
+        TestNotes.removeFolder(mContext, mFolderId);
+        TestNotes.removeFolder(mContext, mTargetFolderId);
+    }
+
+    @Test
+    public void batchDeleteNotesDeletesEveryChunk() {
+        HashSet<Long> ids = TestNotes.createNotes(mResolver, mFolderId, NOTE_COUNT);
+        assertEquals(NOTE_COUNT, ids.size());
+
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        assertEquals(0, TestNotes.getNoteIds(mResolver, mFolderId).size());
+    }
+
+    @Test
+    public void batchDeleteNotesSkipsRootFolder() {
+        HashSet<Long> ids = TestNotes.createNotes(mResolver, mFolderId, NOTE_COUNT);
+        int rootRows = countRows(Notes.ID_ROOT_FOLDER);
+        ids.add((long) Notes.ID_ROOT_FOLDER);
+
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        assertEquals(0, TestNotes.getNoteIds(mResolver, mFolderId).size());
+        assertEquals(rootRows, countRows(Notes.ID_ROOT_FOLDER));
+    }
+
+    @Test
+    public void batchDeleteNotesOfRootFolderOnly() {
+        int rootRows = countRows(Notes.ID_ROOT_FOLDER);
+        HashSet<Long> ids = new HashSet<Long>();
+        ids.add((long) Notes.ID_ROOT_FOLDER);
+
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        assertEquals(rootRows, countRows(Notes.ID_ROOT_FOLDER));
+    }
+
+    @Test
+    public void batchMoveToFolderMovesEveryChunk() {
+        HashSet<Long> ids = TestNotes.createNotes(mResolver, mFolderId, NOTE_COUNT);
+
+        assertTrue(DataUtils.batchMoveToFolder(mResolver, ids, mTargetFolderId));
+        assertEquals(0, TestNotes.getNoteIds(mResolver, mFolderId).size());
+        assertEquals(ids, TestNotes.getNoteIds(mResolver, mTargetFolderId));
+    }
+
+    private int countRows(long id) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id),
+                new String[] { NoteColumns.ID }, null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.TrashPurger;
+
+import java.util.HashSet;
+
+/**
+ * Folders and notes the tests create in the database of the app, each test removes what it
+ * created through {@link #removeFolder}
+ */
+final class TestNotes {
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private TestNotes() {
+    }
+
+    static long createFolder(ContentResolver resolver, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name + " " + System.nanoTime());
+        Uri uri = resolver.insert(Notes.CONTENT_NOTE_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    /**
+     * Add count notes to the folder and return their ids
+     */
+    static HashSet<Long> createNotes(ContentResolver resolver, long folderId, int count) {
+        for (int start = 0; start < count; start += INSERT_BATCH_SIZE) {
+            int size = Math.min(INSERT_BATCH_SIZE, count - start);
+            ContentValues[] batch = new ContentValues[size];
+            for (int i = 0; i < size; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                values.put(NoteColumns.PARENT_ID, folderId);
+                values.put(NoteColumns.SNIPPET, "note " + (start + i));
+                batch[i] = values;
+            }
+            resolver.bulkInsert(Notes.CONTENT_NOTE_URI, batch);
+        }
+        return getNoteIds(resolver, folderId);
+    }
+
+    /**
+     * The ids of the visible notes in the folder
+     */
+    static HashSet<Long> getNoteIds(ContentResolver resolver, long folderId) {
+        HashSet<Long> ids = new HashSet<Long>();
+        Cursor c = resolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                NoteColumns.PARENT_ID + "=?", new String[] { String.valueOf(folderId) }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return ids;
+    }
+
+    static void removeFolder(Context context, long folderId) {
+        HashSet<Long> ids = new HashSet<Long>();
+        ids.add(folderId);
+        DataUtils.batchDeleteNotes(context.getContentResolver(), ids);
+        TrashPurger.getInstance(context).purgeNow();
+    }
+}
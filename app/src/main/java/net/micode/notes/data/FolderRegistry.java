@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The folders of the process in memory: id, name, type and gtask id, with an index of the user
+ * folder names. The folders are few, so they are read in one query the first time they are
+ * needed and read again after the provider changed any of them.
+ * <p>
+ * The provider invalidates the registry on every write which can change a folder, writes that
+ * only add, move or delete plain notes leave it alone. The number of notes in a folder is not
+ * kept here, it changes with every such write, see folder_stats for it. A load only becomes
+ * current if no invalidation happened while it ran, and inside a batch the registry is
+ * invalidated once more after the batch ended, since another thread may have loaded the rows
+ * committed before it.
+ */
+public class FolderRegistry {
+    private static FolderRegistry sInstance;
+
+    public static class Folder {
+        public final long id;
+
+        public final String name;
+
+        public final int type;
+
+        public final long parentId;
+
+        public final String gtaskId;
+
+        public final long modifiedDate;
+
+        Folder(Cursor c) {
+            id = c.getLong(ID_COLUMN);
+            name = c.getString(NAME_COLUMN);
+            type = c.getInt(TYPE_COLUMN);
+            parentId = c.getLong(PARENT_ID_COLUMN);
+            gtaskId = c.getString(GTASK_ID_COLUMN);
+            modifiedDate = c.getLong(MODIFIED_DATE_COLUMN);
+        }
+
+        /**
+         * A folder created by the user which is not in the trash
+         */
+        public boolean isUserFolder() {
+            return type == Notes.TYPE_FOLDER && parentId != Notes.ID_TRASH_FOLER;
+        }
+    }
+
+    private static final String[] PROJECTION = {
+            NoteColumns.ID,
+            NoteColumns.SNIPPET,
+            NoteColumns.TYPE,
+            NoteColumns.PARENT_ID,
+            NoteColumns.GTASK_ID,
+            NoteColumns.MODIFIED_DATE
+    };
+
+    private static final int ID_COLUMN = 0;
+
+    private static final int NAME_COLUMN = 1;
+
+    private static final int TYPE_COLUMN = 2;
+
+    private static final int PARENT_ID_COLUMN = 3;
+
+    private static final int GTASK_ID_COLUMN = 4;
+
+    private static final int MODIFIED_DATE_COLUMN = 5;
+
+    private static final String SELECTION = NoteColumns.TYPE + " IN (" + Notes.TYPE_FOLDER
+            + "," + Notes.TYPE_SYSTEM + ") AND " + NoteColumns.DELETED + "=0";
+
+    private static final Comparator<Folder> RECENT_FIRST = new Comparator<Folder>() {
+        public int compare(Folder a, Folder b) {
+            if (a.modifiedDate != b.modifiedDate) {
+                return a.modifiedDate > b.modifiedDate ? -1 : 1;
+            }
+            return a.id > b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    private static class Snapshot {
+        final HashMap<Long, Folder> folders = new HashMap<Long, Folder>();
+
+        /**
+         * User folders, most recently modified first
+         */
+        final List<Folder> userFolders = new ArrayList<Folder>();
+
+        /**
+         * Number of user folders with each name
+         */
+        final HashMap<String, Integer> userFolderNames = new HashMap<String, Integer>();
+    }
+
+    private final NotesDatabaseHelper mHelper;
+
+    private Snapshot mSnapshot;
+
+    private long mGeneration;
+
+    private final ThreadLocal<Boolean> mBatchDirty = new ThreadLocal<Boolean>();
+
+    public static synchronized FolderRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FolderRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private FolderRegistry(Context context) {
+        mHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * The folder, including the system folders, or null if there is no such visible folder
+     */
+    public Folder getFolder(long id) {
+        return getSnapshot().folders.get(id);
+    }
+
+    /**
+     * The user folders, most recently modified first
+     */
+    public List<Folder> getUserFolders() {
+        return Collections.unmodifiableList(getSnapshot().userFolders);
+    }
+
+    public int getUserFolderCount() {
+        return getSnapshot().userFolders.size();
+    }
+
+    /**
+     * Whether a user folder already has the name
+     */
+    public boolean hasUserFolderNamed(String name) {
+        return getSnapshot().userFolderNames.containsKey(name);
+    }
+
+    /**
+     * Drop everything, the next read loads the folders again
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mSnapshot = null;
+        if (mBatchDirty.get() != null) {
+            mBatchDirty.set(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Invalidate if the note is one of the folders, a write to a plain note leaves the folders
+     * as they are
+     */
+    public synchronized void invalidateFolder(long id) {
+        if (mSnapshot == null || mSnapshot.folders.containsKey(id)) {
+            invalidate();
+        }
+    }
+
+    public void beginBatch() {
+        mBatchDirty.set(Boolean.FALSE);
+    }
+
+    public void endBatch() {
+        Boolean dirty = mBatchDirty.get();
+        mBatchDirty.remove();
+        if (Boolean.TRUE.equals(dirty)) {
+            invalidate();
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        long generation;
+        synchronized (this) {
+            if (mSnapshot != null) {
+                return mSnapshot;
+            }
+            generation = mGeneration;
+        }
+
+        Snapshot snapshot = new Snapshot();
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Cursor c = db.query(TABLE.NOTE, PROJECTION, SELECTION, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                Folder folder = new Folder(c);
+                snapshot.folders.put(folder.id, folder);
+                if (folder.isUserFolder()) {
+                    snapshot.userFolders.add(folder);
+                    Integer count = snapshot.userFolderNames.get(folder.name);
+                    snapshot.userFolderNames.put(folder.name, count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(snapshot.userFolders, RECENT_FIRST);
+
+        synchronized (this) {
+            // a write since the load started may be missing from what was read, the caller
+            // still gets it but the next one loads again
+            if (generation == mGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+}
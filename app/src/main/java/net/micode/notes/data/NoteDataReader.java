@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteDataColumns;
+
+/**
+ * Walks a {@link Notes#CONTENT_NOTE_DATA_URI} cursor note by note. The rows of one note are
+ * consecutive, {@link #moveToNextNote()} moves to the first row of the next note and
+ * {@link #moveToNextData()} then walks its data rows. The cursor stays on a row of the
+ * current note, so the note columns can be read at any time.
+ * <pre>
+ * while (reader.moveToNextNote()) {
+ *     // note columns of reader.getCursor()
+ *     while (reader.moveToNextData()) {
+ *         // data columns of reader.getCursor()
+ *     }
+ * }
+ * </pre>
+ */
+public class NoteDataReader {
+    private final Cursor mCursor;
+
+    private final int mNoteIdColumn;
+
+    private final int mDataIdColumn;
+
+    private long mNoteId;
+
+    private boolean mInNote;
+
+    private boolean mDataStarted;
+
+    public NoteDataReader(Cursor cursor) {
+        mCursor = cursor;
+        mNoteIdColumn = cursor.getColumnIndexOrThrow(NoteColumns.ID);
+        mDataIdColumn = cursor.getColumnIndexOrThrow(NoteDataColumns.DATA_ID);
+    }
+
+    /**
+     * A reader for the note the cursor is on, the cursor is moved back to the first row of
+     * the note if needed
+     */
+    public static NoteDataReader forCurrentNote(Cursor cursor) {
+        NoteDataReader reader = new NoteDataReader(cursor);
+        reader.mNoteId = cursor.getLong(reader.mNoteIdColumn);
+        reader.mInNote = true;
+        reader.rewind();
+        return reader;
+    }
+
+    /**
+     * Whether the cursor comes from {@link Notes#CONTENT_NOTE_DATA_URI}
+     */
+    public static boolean isNoteDataCursor(Cursor cursor) {
+        return cursor.getColumnIndex(NoteDataColumns.DATA_ID) >= 0;
+    }
+
+    public Cursor getCursor() {
+        return mCursor;
+    }
+
+    public long getNoteId() {
+        return mNoteId;
+    }
+
+    /**
+     * Skip the remaining rows of the current note and move to the first row of the next one
+     */
+    public boolean moveToNextNote() {
+        while (mCursor.moveToNext()) {
+            long noteId = mCursor.getLong(mNoteIdColumn);
+            if (!mInNote || noteId != mNoteId) {
+                mNoteId = noteId;
+                mInNote = true;
+                mDataStarted = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move to the next data row of the current note, false once they are used up or if the
+     * note has no data. The cursor is then left on the last row of the note.
+     */
+    public boolean moveToNextData() {
+        if (!mInNote) {
+            return false;
+        }
+        if (!mDataStarted) {
+            rewind();
+            mDataStarted = true;
+            return !mCursor.isNull(mDataIdColumn);
+        }
+        if (mCursor.moveToNext()) {
+            if (mCursor.getLong(mNoteIdColumn) == mNoteId) {
+                return true;
+            }
+            mCursor.moveToPrevious();
+        } else {
+            mCursor.moveToLast();
+        }
+        return false;
+    }
+
+    public void close() {
+        mCursor.close();
+    }
+
+    private void rewind() {
+        while (mCursor.moveToPrevious()) {
+            if (mCursor.getLong(mNoteIdColumn) != mNoteId) {
+                mCursor.moveToNext();
+                return;
+            }
+        }
+        mCursor.moveToFirst();
+    }
+}
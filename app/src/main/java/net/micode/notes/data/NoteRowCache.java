@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-through cache of the per note lookups of the provider, the note row by its id and the
+ * data rows by their note id. Entries are snapshots of the query results keyed by the note,
+ * the projection and the sort order, the cache is bounded by the estimated size of the
+ * snapshots.
+ * <p>
+ * Every write of the provider invalidates the notes it touches, including the changes its
+ * triggers make, e.g. a data write changes the snippet and the modified date of its note.
+ * A query only fills the cache if no invalidation happened since it started, so a result
+ * read before a write can never be stored after it. Inside a batch the writing thread
+ * bypasses the cache, since it sees rows which may still be rolled back, and the batch
+ * invalidates its notes once more after it ended.
+ */
+public class NoteRowCache {
+    public static final int KIND_NOTE = 0;
+
+    public static final int KIND_DATA = 1;
+
+    /**
+     * Share of the heap the cache may use, capped at {@link #MAX_CACHE_BYTES}
+     */
+    private static final int HEAP_FRACTION = 64;
+
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static NoteRowCache sInstance;
+
+    /**
+     * Identifies one cached lookup, also what is needed to run the lookup again
+     */
+    public static class Key {
+        public final int kind;
+
+        public final long noteId;
+
+        public final String[] projection;
+
+        public final String sortOrder;
+
+        private final String mKey;
+
+        public Key(int kind, long noteId, String[] projection, String sortOrder) {
+            this.kind = kind;
+            this.noteId = noteId;
+            this.projection = projection;
+            this.sortOrder = sortOrder;
+            mKey = kind + "/" + noteId + "/"
+                    + (projection == null ? "*" : Arrays.toString(projection)) + "/" + sortOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && mKey.equals(((Key) o).mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
+        }
+    }
+
+    private static class Entry {
+        final String[] columns;
+
+        final List<Object[]> rows;
+
+        final int size;
+
+        Entry(String[] columns, List<Object[]> rows, int size) {
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+        }
+    }
+
+    private final LruCache<Key, Entry> mEntries;
+
+    private final Map<Long, Set<Key>> mKeysByNote = new HashMap<Long, Set<Key>>();
+
+    private final ThreadLocal<BatchState> mBatch = new ThreadLocal<BatchState>();
+
+    private long mGeneration;
+
+    private long mHits;
+
+    private long mMisses;
+
+    private static class BatchState {
+        final Set<Long> noteIds = new HashSet<Long>();
+
+        boolean all;
+    }
+
+    public static synchronized NoteRowCache getInstance() {
+        if (sInstance == null) {
+            long heapBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            sInstance = new NoteRowCache((int) Math.min(heapBytes, MAX_CACHE_BYTES));
+        }
+        return sInstance;
+    }
+
+    private NoteRowCache(int maxBytes) {
+        mEntries = new LruCache<Key, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Entry entry) {
+                return entry.size;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Entry oldValue,
+                    Entry newValue) {
+                // called while the cache monitor is held by every caller below
+                if (newValue == null) {
+                    Set<Key> keys = mKeysByNote.get(key.noteId);
+                    if (keys != null) {
+                        keys.remove(key);
+                        if (keys.isEmpty()) {
+                            mKeysByNote.remove(key.noteId);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the cached result or null, in which case the caller queries the
+     * database and offers the result to {@link #put} with the generation returned by
+     * {@link #getGeneration()} before the query
+     */
+    public synchronized Cursor get(Key key) {
+        if (mBatch.get() != null) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.size());
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Snapshot the cursor into the cache unless the cache was invalidated since generation.
+     * The cursor is left before its first row again.
+     */
+    public void put(Key key, Cursor cursor, long generation) {
+        if (mBatch.get() != null) {
+            return;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        int size = ENTRY_OVERHEAD;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        size += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        size += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String value = cursor.getString(i);
+                        row[i] = value;
+                        size += 40 + value.length() * 2;
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        row[i] = blob;
+                        size += 16 + blob.length;
+                        break;
+                    default:
+                        row[i] = null;
+                        size += 4;
+                        break;
+                }
+            }
+            rows.add(row);
+        }
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mEntries.put(key, new Entry(columns, rows, size));
+            Set<Key> keys = mKeysByNote.get(key.noteId);
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                mKeysByNote.put(key.noteId, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Drop every lookup of the note, the next read loads them again
+     */
+    public synchronized void invalidateNote(long noteId) {
+        mGeneration++;
+        BatchState batch = mBatch.get();
+        if (batch != null) {
+            batch.noteIds.add(noteId);
+        }
+
+        Set<Key> keys = mKeysByNote.remove(noteId);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            mEntries.remove(key);
+        }
+    }
+
+    /**
+     * Drop everything, for writes whose affected notes are not known
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        BatchState batch = mBatch.get();
+        if (batch != null) {
+            batch.all = true;
+        }
+        mEntries.evictAll();
+        mKeysByNote.clear();
+    }
+
+    /**
+     * Bypass the cache on the current thread until {@link #endBatch()}
+     */
+    public void beginBatch() {
+        mBatch.set(new BatchState());
+    }
+
+    /**
+     * Invalidate the notes of the batch once more, after its transaction has ended, since
+     * other threads may have cached the rows committed before it
+     */
+    public void endBatch() {
+        BatchState batch = mBatch.get();
+        mBatch.remove();
+        if (batch == null) {
+            return;
+        }
+        if (batch.all) {
+            invalidateAll();
+        } else {
+            for (long noteId : batch.noteIds) {
+                invalidateNote(noteId);
+            }
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+}
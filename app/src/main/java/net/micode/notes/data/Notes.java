@@ -48,6 +48,12 @@ public class Notes {
     public static final String INTENT_EXTRA_FOLDER_ID = "net.micode.notes.folder_id";
     public static final String INTENT_EXTRA_CALL_DATE = "net.micode.notes.call_date";
 
+    /**
+     * 搜索建议的附加数据为"笔记ID;匹配位置"，匹配位置是全文索引offsets()的结果，每个匹配
+     * 四个整数：列号、词序号、UTF-8字节偏移、字节长度。没有匹配位置时只有笔记ID
+     */
+    public static final String SEARCH_MATCH_SEPARATOR = ";";
+
     // 小部件的类型定义
     public static final int TYPE_WIDGET_INVALIDE = -1;  // 无效小部件类型
     public static final int TYPE_WIDGET_2X = 0;         // 2x小部件类型
@@ -73,6 +79,33 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse(uriHead  + AUTHORITY + "/data");
 
+    /**
+     * 笔记分页查询参数：每页的最大条数
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * 笔记分页查询参数：上一页最后一条记录的"type,modified_date,_id"，只返回排在其后的记录
+     */
+    public static final String PARAM_AFTER = "after";
+
+    /**
+     * 查询参数：为true时note和data的查询不再隐藏已标记删除的记录，用于检查某个_id是否已被占用，
+     * 标记删除的记录在清除之前仍占用着它的_id
+     */
+    public static final String PARAM_INCLUDE_DELETED = "include_deleted";
+
+    /**
+     * 查询文件夹统计的URI，只读，folder_stats/#查询单个文件夹
+     */
+    public static final Uri CONTENT_FOLDER_STATS_URI = Uri.parse(uriHead  + AUTHORITY + "/folder_stats");
+
+    /**
+     * 查询笔记及其数据的URI，只读，每个数据一行，没有数据的笔记也有一行，按笔记ID分组排列
+     * 列为NoteColumns中的列加上NoteDataColumns中的数据列，选择条件中笔记ID需写作note._id
+     */
+    public static final Uri CONTENT_NOTE_DATA_URI = Uri.parse(uriHead  + AUTHORITY + "/note_data");
+
     // NoteColumns接口定义了与笔记相关的数据库表字段
     public interface NoteColumns {
         default String getID(){
@@ -112,6 +145,12 @@ public class Notes {
         public static final String GTASK_ID = "gtask_id";
 
         public static final String VERSION = "version";
+
+        // 笔记预览：去掉清单标记后的第一行，长度有上限，由数据表的触发器维护
+        public static final String PREVIEW = "preview";
+
+        // 删除标记：为1时该记录已被删除，立即对查询不可见，由后台清理任务真正删除
+        public static final String DELETED = "deleted";
     }
 
     // DataColumns接口定义了与数据相关的数据库表字段
@@ -184,6 +223,77 @@ public class Notes {
          * <P> 类型: TEXT </P>
          */
         public static final String DATA5 = "data5";
+
+        /**
+         * 电话号码的最小匹配键，即号码末尾若干位数字的倒序，由内容提供者根据DATA3生成，
+         * 用于按索引查找通话笔记
+         * <P> 类型: TEXT </P>
+         */
+        public static final String PHONE_KEY = "phone_key";
+    }
+
+    // FolderStatsColumns接口定义了文件夹统计表的字段，每个文件夹一行，由笔记表的触发器维护
+    // NoteDataColumns接口定义了笔记联合数据查询中的数据列，与笔记列同名的数据列加了前缀
+    public interface NoteDataColumns {
+        /**
+         * 数据ID，笔记没有数据时为NULL
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String DATA_ID = "data_id";
+
+        public static final String MIME_TYPE = DataColumns.MIME_TYPE;
+
+        public static final String NOTE_ID = DataColumns.NOTE_ID;
+
+        public static final String CONTENT = DataColumns.CONTENT;
+
+        public static final String DATA1 = DataColumns.DATA1;
+
+        public static final String DATA2 = DataColumns.DATA2;
+
+        public static final String DATA3 = DataColumns.DATA3;
+
+        public static final String DATA4 = DataColumns.DATA4;
+
+        public static final String DATA5 = DataColumns.DATA5;
+    }
+
+    public interface FolderStatsColumns {
+        /**
+         * 文件夹ID，根文件夹和系统文件夹也有对应的行
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String FOLDER_ID = "folder_id";
+
+        /**
+         * 文件夹中的笔记数量
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String NOTES_COUNT = "notes_count";
+
+        /**
+         * 文件夹中的子文件夹数量
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String FOLDER_COUNT = "folder_count";
+
+        /**
+         * 文件夹中设置了提醒的笔记数量
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String ALERT_COUNT = "alert_count";
+
+        /**
+         * 从该文件夹移入回收站的笔记数量
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String TRASHED_COUNT = "trashed_count";
+
+        /**
+         * 文件夹中笔记的最近修改时间，只增不减
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String LAST_MODIFIED = "last_modified";
     }
 
     // TextNote类实现了DataColumns接口，表示文本笔记的数据结构
@@ -2,12 +2,20 @@ package net.micode.notes.data;
 
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.FolderStatsColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 
 /**
@@ -19,7 +27,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
     // 数据库版本号
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 10;
+
+    // WAL文件累计到多少页时自动执行检查点
+    private static final int WAL_AUTO_CHECKPOINT_PAGES = 1000;
 
     // 定义表名的接口
     public interface TABLE {
@@ -34,6 +45,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         public static final String NOTE = "note";
         // 数据表名称
         public static final String DATA = "data";
+        // 数据内容的全文索引表名称
+        public static final String DATA_FTS = "data_fts";
+        // 文件夹统计表名称
+        public static final String FOLDER_STATS = "folder_stats";
     }
 
     // 日志标识符
@@ -60,7 +75,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-                    NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+                    NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+                    NoteColumns.PREVIEW + " TEXT NOT NULL DEFAULT ''," +
+                    NoteColumns.DELETED + " INTEGER NOT NULL DEFAULT 0" +
                     ")";
 
     // SQL语句：创建数据表
@@ -76,7 +93,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     DataColumns.DATA2 + " INTEGER," +
                     DataColumns.DATA3 + " TEXT NOT NULL DEFAULT ''," +
                     DataColumns.DATA4 + " TEXT NOT NULL DEFAULT ''," +
-                    DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
+                    DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''," +
+                    DataColumns.PHONE_KEY + " TEXT NOT NULL DEFAULT ''" +
                     ")";
 
     // SQL语句：创建数据表中的NOTE_ID索引
@@ -84,48 +102,193 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             "CREATE INDEX IF NOT EXISTS note_id_index ON " +
                     TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
-    // SQL触发器：当更新PARENT_ID时增加文件夹的笔记数量
-    private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
-            "CREATE TRIGGER increase_folder_count_on_update "+
-                    " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
-                    " BEGIN " +
-                    "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
-                    "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.PARENT_ID + ";" +
-                    " END";
+    // SQL语句：创建通话笔记的号码索引，来电时按号码键和通话时间查找笔记不必扫描整个数据表
+    private static final String CREATE_DATA_PHONE_KEY_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS data_phone_key_index ON " + TABLE.DATA + "(" +
+                    DataColumns.MIME_TYPE + "," +
+                    DataColumns.PHONE_KEY + "," +
+                    CallNote.CALL_DATE + ");";
 
-    // SQL触发器：当更新PARENT_ID时减少文件夹的笔记数量
-    private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
-            "CREATE TRIGGER decrease_folder_count_on_update " +
-                    " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
-                    " BEGIN " +
-                    "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
-                    "  WHERE " + NoteColumns.ID + "=old." + NoteColumns.PARENT_ID +
-                    "  AND " + NoteColumns.NOTES_COUNT + ">0" + ";" +
-                    " END";
+    // SQL语句：创建按笔记查找通话号码的覆盖索引，查询只需读取索引
+    private static final String CREATE_DATA_CALL_NUMBER_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS data_call_number_index ON " + TABLE.DATA + "(" +
+                    DataColumns.NOTE_ID + "," +
+                    DataColumns.MIME_TYPE + "," +
+                    CallNote.PHONE_NUMBER + ");";
 
-    // SQL触发器：插入新笔记时增加文件夹的笔记数量
-    private static final String NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER =
-            "CREATE TRIGGER increase_folder_count_on_insert " +
+    // SQL语句：创建笔记列表索引，与分页查询的排序(type DESC, modified_date DESC, _id DESC)一致，
+    // 按文件夹分页时可以直接沿索引定位到上一页的末尾
+    private static final String CREATE_NOTE_LIST_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_list_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.PARENT_ID + "," +
+                    NoteColumns.TYPE + "," +
+                    NoteColumns.MODIFIED_DATE + "," +
+                    NoteColumns.ID + ");";
+
+    // SQL语句：创建文件夹统计表
+    private static final String CREATE_FOLDER_STATS_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.FOLDER_STATS + "(" +
+                    FolderStatsColumns.FOLDER_ID + " INTEGER PRIMARY KEY," +
+                    FolderStatsColumns.NOTES_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                    FolderStatsColumns.FOLDER_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                    FolderStatsColumns.ALERT_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                    FolderStatsColumns.TRASHED_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                    FolderStatsColumns.LAST_MODIFIED + " INTEGER NOT NULL DEFAULT 0" +
+                    ")";
+
+    // 已标记删除的记录不计入统计
+    private static String notDeleted(String row) {
+        return row + "." + NoteColumns.DELETED + "=0";
+    }
+
+    // 减去一条笔记记录对所在文件夹统计的贡献，row为old或new
+    private static String folderStatsRemove(String row) {
+        return "  UPDATE " + TABLE.FOLDER_STATS + " SET " +
+                FolderStatsColumns.NOTES_COUNT + "=" + FolderStatsColumns.NOTES_COUNT +
+                "-(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + notDeleted(row) + ")," +
+                FolderStatsColumns.FOLDER_COUNT + "=" + FolderStatsColumns.FOLDER_COUNT +
+                "-(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND " + notDeleted(row) + ")," +
+                FolderStatsColumns.ALERT_COUNT + "=" + FolderStatsColumns.ALERT_COUNT +
+                "-(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+                " AND " + row + "." + NoteColumns.ALERTED_DATE + ">0 AND " + notDeleted(row) + ")" +
+                "  WHERE " + FolderStatsColumns.FOLDER_ID + "=" + row + "." + NoteColumns.PARENT_ID + ";" +
+                "  UPDATE " + TABLE.FOLDER_STATS + " SET " +
+                FolderStatsColumns.TRASHED_COUNT + "=" + FolderStatsColumns.TRASHED_COUNT + "-1" +
+                "  WHERE " + FolderStatsColumns.FOLDER_ID + "=" + row + "." + NoteColumns.ORIGIN_PARENT_ID +
+                "  AND " + row + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                "  AND " + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+                "  AND " + notDeleted(row) + ";";
+    }
+
+    // 加上一条笔记记录对所在文件夹统计的贡献，统计行不存在时先创建
+    private static String folderStatsAdd(String row) {
+        return "  INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                "   VALUES(" + row + "." + NoteColumns.PARENT_ID + ");" +
+                "  UPDATE " + TABLE.FOLDER_STATS + " SET " +
+                FolderStatsColumns.NOTES_COUNT + "=" + FolderStatsColumns.NOTES_COUNT +
+                "+(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + notDeleted(row) + ")," +
+                FolderStatsColumns.FOLDER_COUNT + "=" + FolderStatsColumns.FOLDER_COUNT +
+                "+(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND " + notDeleted(row) + ")," +
+                FolderStatsColumns.ALERT_COUNT + "=" + FolderStatsColumns.ALERT_COUNT +
+                "+(" + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+                " AND " + row + "." + NoteColumns.ALERTED_DATE + ">0 AND " + notDeleted(row) + ")," +
+                FolderStatsColumns.LAST_MODIFIED + "=MAX(" + FolderStatsColumns.LAST_MODIFIED +
+                "," + row + "." + NoteColumns.MODIFIED_DATE + ")" +
+                "  WHERE " + FolderStatsColumns.FOLDER_ID + "=" + row + "." + NoteColumns.PARENT_ID + ";" +
+                "  INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                "   SELECT " + row + "." + NoteColumns.ORIGIN_PARENT_ID +
+                "   WHERE " + row + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                "   AND " + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + ";" +
+                "  UPDATE " + TABLE.FOLDER_STATS + " SET " +
+                FolderStatsColumns.TRASHED_COUNT + "=" + FolderStatsColumns.TRASHED_COUNT + "+1" +
+                "  WHERE " + FolderStatsColumns.FOLDER_ID + "=" + row + "." + NoteColumns.ORIGIN_PARENT_ID +
+                "  AND " + row + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                "  AND " + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+                "  AND " + notDeleted(row) + ";";
+    }
+
+    // SQL触发器：插入笔记或文件夹时更新统计，新文件夹同时创建自己的统计行
+    private static final String FOLDER_STATS_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER folder_stats_on_insert " +
                     " AFTER INSERT ON " + TABLE.NOTE +
-                    " BEGIN " +
-                    "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
-                    "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.PARENT_ID + ";" +
+                    " BEGIN" +
+                    "  INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                    "   SELECT new." + NoteColumns.ID +
+                    "   WHERE new." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE + ";" +
+                    folderStatsAdd("new") +
+                    " END";
+
+    // SQL触发器：移动、设置提醒、修改笔记时，先减去旧记录的贡献再加上新记录的贡献
+    private static final String FOLDER_STATS_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER folder_stats_on_update " +
+                    " AFTER UPDATE OF " + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," +
+                    NoteColumns.ALERTED_DATE + "," + NoteColumns.MODIFIED_DATE + "," +
+                    NoteColumns.ORIGIN_PARENT_ID + "," + NoteColumns.DELETED + " ON " + TABLE.NOTE +
+                    " BEGIN" +
+                    folderStatsRemove("old") +
+                    folderStatsAdd("new") +
                     " END";
 
-    // SQL触发器：删除笔记时减少文件夹的笔记数量
-    private static final String NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER =
-            "CREATE TRIGGER decrease_folder_count_on_delete " +
+    // SQL触发器：删除笔记时减去其贡献，删除文件夹时一并删除它的统计行
+    private static final String FOLDER_STATS_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER folder_stats_on_delete " +
                     " AFTER DELETE ON " + TABLE.NOTE +
-                    " BEGIN " +
+                    " BEGIN" +
+                    folderStatsRemove("old") +
+                    "  DELETE FROM " + TABLE.FOLDER_STATS +
+                    "   WHERE " + FolderStatsColumns.FOLDER_ID + "=old." + NoteColumns.ID + ";" +
+                    " END";
+
+    // SQL触发器：笔记移入回收站时记录其原来所在的文件夹，用于按文件夹统计回收站中的笔记
+    private static final String NOTE_SET_ORIGIN_ON_TRASH_TRIGGER =
+            "CREATE TRIGGER set_origin_parent_on_trash " +
+                    " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+                    " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                    " AND old." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+                    " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
-                    "  WHERE " + NoteColumns.ID + "=old." + NoteColumns.PARENT_ID +
-                    "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
+                    "   SET " + NoteColumns.ORIGIN_PARENT_ID + "=old." + NoteColumns.PARENT_ID +
+                    "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
                     " END";
 
+    // SQL语句：创建已删除记录的部分索引，后台清理和可见性过滤只需要查找这些记录
+    private static final String CREATE_NOTE_DELETED_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_deleted_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.ID + ") WHERE " + NoteColumns.DELETED + "=1";
+
+    // 统计某个文件夹中满足条件的记录数的子查询
+    private static String countInFolder(String condition) {
+        return "(SELECT COUNT(*) FROM " + TABLE.NOTE + " n WHERE " + condition + ")";
+    }
+
+    // SQL语句：根据已有的笔记重建全部文件夹统计
+    private static final String[] FOLDER_STATS_BACKFILL_SQL = new String[] {
+            "DELETE FROM " + TABLE.FOLDER_STATS,
+            "INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                    " VALUES(" + Notes.ID_ROOT_FOLDER + ")",
+            "INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                    " SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE +
+                    " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE,
+            "INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                    " SELECT DISTINCT " + NoteColumns.PARENT_ID + " FROM " + TABLE.NOTE,
+            "INSERT OR IGNORE INTO " + TABLE.FOLDER_STATS + "(" + FolderStatsColumns.FOLDER_ID + ")" +
+                    " SELECT DISTINCT " + NoteColumns.ORIGIN_PARENT_ID + " FROM " + TABLE.NOTE +
+                    " WHERE " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER,
+            "UPDATE " + TABLE.FOLDER_STATS + " SET " +
+                    FolderStatsColumns.NOTES_COUNT + "=" + countInFolder(
+                            "n." + NoteColumns.PARENT_ID + "=" + FolderStatsColumns.FOLDER_ID +
+                            " AND n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE) + "," +
+                    FolderStatsColumns.FOLDER_COUNT + "=" + countInFolder(
+                            "n." + NoteColumns.PARENT_ID + "=" + FolderStatsColumns.FOLDER_ID +
+                            " AND n." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER) + "," +
+                    FolderStatsColumns.ALERT_COUNT + "=" + countInFolder(
+                            "n." + NoteColumns.PARENT_ID + "=" + FolderStatsColumns.FOLDER_ID +
+                            " AND n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+                            " AND n." + NoteColumns.ALERTED_DATE + ">0") + "," +
+                    FolderStatsColumns.TRASHED_COUNT + "=" + countInFolder(
+                            "n." + NoteColumns.ORIGIN_PARENT_ID + "=" + FolderStatsColumns.FOLDER_ID +
+                            " AND n." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                            " AND n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE) + "," +
+                    FolderStatsColumns.LAST_MODIFIED + "=(SELECT IFNULL(MAX(n." +
+                    NoteColumns.MODIFIED_DATE + "),0) FROM " + TABLE.NOTE + " n" +
+                    " WHERE n." + NoteColumns.PARENT_ID + "=" + FolderStatsColumns.FOLDER_ID + ")"
+    };
+
+    // 预览的最大长度
+    private static final int PREVIEW_MAX_LENGTH = 128;
+
+    // 生成预览时最多检查的内容长度，避免对很长的笔记做整段的替换
+    private static final int PREVIEW_SCAN_LENGTH = 1024;
+
+    // 生成预览的SQL表达式：去掉清单标记(√ □)和开头的空白，取第一行，截断到最大长度
+    private static String previewOf(String content) {
+        String stripped = "LTRIM(REPLACE(REPLACE(SUBSTR(" + content + ",1," + PREVIEW_SCAN_LENGTH
+                + "),'\u221A',''),'\u25A1',''),' \t\r\n')";
+        return "TRIM(SUBSTR(" + stripped + ",1,CASE WHEN INSTR(" + stripped + ",'\n')>0"
+                + " THEN MIN(INSTR(" + stripped + ",'\n')-1," + PREVIEW_MAX_LENGTH + ")"
+                + " ELSE " + PREVIEW_MAX_LENGTH + " END),' \t\r')";
+    }
+
     // SQL触发器：插入数据时更新笔记的内容
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER =
             "CREATE TRIGGER update_note_content_on_insert " +
@@ -133,7 +296,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT + "," +
+                    "   " + NoteColumns.PREVIEW + "=" + previewOf("new." + DataColumns.CONTENT) +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
@@ -144,7 +308,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT + "," +
+                    "   " + NoteColumns.PREVIEW + "=" + previewOf("new." + DataColumns.CONTENT) +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
@@ -155,7 +320,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=''" +
+                    "   SET " + NoteColumns.SNIPPET + "=''," + NoteColumns.PREVIEW + "=''" +
                     "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
                     " END";
 
@@ -188,6 +353,71 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
                     " END";
 
+    // 需要进入全文索引的数据类型：文本笔记和通话笔记
+    private static String ftsIndexedCondition(String row) {
+        return row + "." + DataColumns.MIME_TYPE + " IN ('" + DataConstants.NOTE + "','"
+                + DataConstants.CALL_NOTE + "')";
+    }
+
+    // SQL语句：创建全文索引表，以data表为外部内容表，docid即data表的_id，
+    // prefix选项为2、3字符的前缀建立额外索引，使前缀查询不必扫描整个词表
+    private static final String CREATE_DATA_FTS_TABLE_SQL =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.DATA_FTS + " USING fts4(" +
+                    DataColumns.CONTENT + "," +
+                    " content=\"" + TABLE.DATA + "\"," +
+                    " prefix=\"2,3\"," +
+                    " tokenize=unicode61" +
+                    ")";
+
+    // SQL触发器：插入数据后写入全文索引
+    private static final String DATA_FTS_INSERT_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER data_fts_insert_on_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " WHEN " + ftsIndexedCondition("new") +
+                    " BEGIN" +
+                    "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                    "   VALUES(new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
+                    " END";
+
+    // SQL触发器：更新数据前删除旧的索引项（外部内容表要求在原内容仍存在时删除）
+    private static final String DATA_FTS_DELETE_BEFORE_UPDATE_TRIGGER =
+            "CREATE TRIGGER data_fts_delete_before_update " +
+                    " BEFORE UPDATE OF " + DataColumns.CONTENT + "," + DataColumns.MIME_TYPE +
+                    " ON " + TABLE.DATA +
+                    " WHEN " + ftsIndexedCondition("old") +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_FTS +
+                    "   WHERE docid=old." + DataColumns.ID + ";" +
+                    " END";
+
+    // SQL触发器：更新数据后写入新的索引项
+    private static final String DATA_FTS_INSERT_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER data_fts_insert_on_update " +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + "," + DataColumns.MIME_TYPE +
+                    " ON " + TABLE.DATA +
+                    " WHEN " + ftsIndexedCondition("new") +
+                    " BEGIN" +
+                    "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                    "   VALUES(new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
+                    " END";
+
+    // SQL触发器：删除数据前删除对应的索引项
+    private static final String DATA_FTS_DELETE_BEFORE_DELETE_TRIGGER =
+            "CREATE TRIGGER data_fts_delete_before_delete " +
+                    " BEFORE DELETE ON " + TABLE.DATA +
+                    " WHEN " + ftsIndexedCondition("old") +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_FTS +
+                    "   WHERE docid=old." + DataColumns.ID + ";" +
+                    " END";
+
+    // SQL语句：为已有数据建立全文索引
+    private static final String DATA_FTS_BACKFILL_SQL =
+            "INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                    " SELECT " + DataColumns.ID + "," + DataColumns.CONTENT +
+                    " FROM " + TABLE.DATA +
+                    " WHERE " + ftsIndexedCondition(TABLE.DATA);
+
     // 初始化数据库实例
     public static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
@@ -199,6 +429,19 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 构造函数
     private NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // 使用预写日志模式：同步写入时列表查询可以在其他连接上并发读取，
+        // 已有的回滚日志模式数据库在下次打开时会自动转换为WAL模式
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    // 配置数据库连接，在建表和升级之前调用
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA wal_autocheckpoint=" + WAL_AUTO_CHECKPOINT_PAGES, null);
+        // 新建的数据库直接启用增量回收空闲页，已有的数据库由NotesMaintenance在空闲时VACUUM转换
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
     }
 
     // 创建数据库
@@ -207,16 +450,47 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         db.execSQL(CREATE_DATA_TABLE_SQL);
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
-        db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
-        db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
-        db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
-        db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER);
+        db.execSQL(CREATE_NOTE_LIST_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_DELETED_INDEX_SQL);
+        db.execSQL(CREATE_DATA_PHONE_KEY_INDEX_SQL);
+        db.execSQL(CREATE_DATA_CALL_NUMBER_INDEX_SQL);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
         db.execSQL(NOTE_DELETE_DATA_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        createDataFtsTable(db);
+        createFolderStatsTable(db);
+        createFolderStatsTriggers(db);
+    }
+
+    // 创建文件夹统计表，并根据已有数据填充
+    private void createFolderStatsTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_FOLDER_STATS_TABLE_SQL);
+        db.execSQL(NOTE_SET_ORIGIN_ON_TRASH_TRIGGER);
+        for (String sql : FOLDER_STATS_BACKFILL_SQL) {
+            db.execSQL(sql);
+        }
+    }
+
+    // 创建维护文件夹统计的触发器，触发器引用了删除标记列
+    private void createFolderStatsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_stats_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_stats_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_stats_on_delete");
+        db.execSQL(FOLDER_STATS_ON_INSERT_TRIGGER);
+        db.execSQL(FOLDER_STATS_ON_UPDATE_TRIGGER);
+        db.execSQL(FOLDER_STATS_ON_DELETE_TRIGGER);
+    }
+
+    // 创建全文索引表及其同步触发器
+    private void createDataFtsTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_DATA_FTS_TABLE_SQL);
+        db.execSQL(DATA_FTS_INSERT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_FTS_DELETE_BEFORE_UPDATE_TRIGGER);
+        db.execSQL(DATA_FTS_INSERT_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_FTS_DELETE_BEFORE_DELETE_TRIGGER);
     }
 
     // 更新数据库，当数据库版本改变时调用
@@ -225,7 +499,138 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         Log.d(TAG, "onUpgrade: from " + oldVersion + " to " + newVersion);
         if (oldVersion == 3) {
             db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+            oldVersion++;
+        }
+
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            db.execSQL(CREATE_NOTE_LIST_INDEX_SQL);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        if (oldVersion != newVersion) {
+            throw new IllegalStateException("Upgrade notes database to version " + newVersion
+                    + " fails");
+        }
+    }
+
+    // 版本5：增加全文索引表，并为已有的文本和通话笔记建立索引
+    private void upgradeToV5(SQLiteDatabase db) {
+        createDataFtsTable(db);
+        db.execSQL(DATA_FTS_BACKFILL_SQL);
+    }
+
+    // 手动执行WAL检查点，在同步等大量写入结束后调用，将日志写回数据库文件并截断
+    public void checkpoint() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        Cursor c;
+        try {
+            c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        } catch (SQLiteException e) {
+            // 旧版本SQLite不支持TRUNCATE模式
+            c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        }
+        try {
+            // 返回值依次为：是否被阻塞、日志总页数、已写回的页数
+            if (c.moveToFirst()) {
+                Log.d(TAG, "checkpoint: busy=" + c.getInt(0) + " log=" + c.getInt(1)
+                        + " checkpointed=" + c.getInt(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    // 版本7：增加预览列，重建维护内容的触发器，并由已有的snippet生成预览
+    private void upgradeToV7(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.PREVIEW
+                + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PREVIEW + "="
+                + previewOf(NoteColumns.SNIPPET)
+                + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE);
+    }
+
+    // 版本8：用文件夹统计表代替维护notes_count列的四个触发器，
+    // 维护统计表的触发器依赖版本9的删除标记列，在upgradeToV9中创建
+    private void upgradeToV8(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_delete");
+        createFolderStatsTable(db);
+    }
+
+    // 版本9：增加删除标记列，文件夹统计的触发器改为忽略已标记删除的记录
+    private void upgradeToV9(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.DELETED
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL(CREATE_NOTE_DELETED_INDEX_SQL);
+        createFolderStatsTriggers(db);
+    }
+
+    // 版本10：增加号码键列，为已有的通话笔记生成号码键，并建立号码索引
+    private void upgradeToV10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.DATA + " ADD COLUMN " + DataColumns.PHONE_KEY
+                + " TEXT NOT NULL DEFAULT ''");
+        Cursor c = db.query(TABLE.DATA, new String[] { DataColumns.ID, CallNote.PHONE_NUMBER },
+                DataColumns.MIME_TYPE + "=?", new String[] { CallNote.CONTENT_ITEM_TYPE },
+                null, null, null);
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE.DATA + " SET "
+                + DataColumns.PHONE_KEY + "=? WHERE " + DataColumns.ID + "=?");
+        try {
+            while (c.moveToNext()) {
+                update.bindString(1, phoneKeyOf(c.getString(1)));
+                update.bindLong(2, c.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+            c.close();
+        }
+        db.execSQL(CREATE_DATA_PHONE_KEY_INDEX_SQL);
+        db.execSQL(CREATE_DATA_CALL_NUMBER_INDEX_SQL);
+    }
+
+    // 由电话号码生成号码键，与联系人数据库的号码查找相同：先按号码键缩小范围，再用PHONE_NUMBERS_EQUAL比较
+    public static String phoneKeyOf(String phoneNumber) {
+        if (TextUtils.isEmpty(phoneNumber)) {
+            return "";
         }
+        String key = PhoneNumberUtils.toCallerIDMinMatch(phoneNumber);
+        return key == null ? "" : key;
     }
 
     // 执行SQL查询，用于调试目的
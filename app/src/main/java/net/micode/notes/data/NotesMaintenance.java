@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps note.db in shape in the background.
+ * <p>
+ * After bulk writes such as a sync or a purge the planner statistics are refreshed with
+ * PRAGMA optimize, ANALYZE the first time. While the device is charging and not in use the
+ * free pages are handed back to the file system with incremental vacuum, a bounded number of
+ * pages per step, rechecking the device state between steps. A database created before
+ * incremental auto vacuum was enabled is converted by one VACUUM at such a time, which cannot
+ * run inside the upgrade transaction.
+ */
+public class NotesMaintenance {
+    private static final String TAG = "NotesMaintenance";
+
+    /**
+     * auto_vacuum value of INCREMENTAL
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final int VACUUM_STEP_PAGES = 256;
+
+    private static final int MAX_VACUUM_STEPS = 64;
+
+    private static NotesMaintenance sInstance;
+
+    private final Context mContext;
+
+    private final NotesDatabaseHelper mHelper;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private boolean mScheduled;
+
+    private String mLastReport;
+
+    private final Runnable mMaintain = new Runnable() {
+        public void run() {
+            synchronized (NotesMaintenance.this) {
+                mScheduled = false;
+            }
+            try {
+                maintain();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "maintenance failed: " + e.toString());
+            }
+        }
+    };
+
+    public static synchronized NotesMaintenance getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotesMaintenance(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NotesMaintenance(Context context) {
+        mContext = context;
+        mHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Run a maintenance pass in the background, e.g. after a sync or a purge
+     */
+    public synchronized void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.execute(mMaintain);
+        }
+    }
+
+    /**
+     * Sizes of the database before and after the last pass which reclaimed pages
+     */
+    public synchronized String getLastReport() {
+        return mLastReport;
+    }
+
+    private void maintain() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        optimize(db);
+
+        if (!isIdleAndCharging()) {
+            return;
+        }
+
+        String before = describe(db);
+        boolean converted = false;
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            // the mode was recorded in onConfigure, VACUUM rewrites the file with it
+            db.execSQL("VACUUM");
+            converted = true;
+        }
+
+        int steps = 0;
+        while (steps < MAX_VACUUM_STEPS
+                && DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0
+                && isIdleAndCharging()) {
+            db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+            steps++;
+        }
+
+        if (converted || steps > 0) {
+            mHelper.checkpoint();
+            String report = "before: " + before + ", after: " + describe(db)
+                    + (converted ? ", converted to incremental vacuum" : "")
+                    + ", vacuum steps: " + steps;
+            Log.i(TAG, report);
+            synchronized (this) {
+                mLastReport = report;
+            }
+        }
+    }
+
+    private void optimize(SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master",
+                "type='table' AND name='sqlite_stat1'") == 0) {
+            // no statistics at all yet
+            db.execSQL("ANALYZE");
+        } else {
+            // analyzes only the tables whose statistics are out of date, ignored by old sqlite
+            db.execSQL("PRAGMA optimize");
+        }
+    }
+
+    private String describe(SQLiteDatabase db) {
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        File file = new File(db.getPath());
+        File wal = new File(db.getPath() + "-wal");
+        return "file=" + file.length() + "B wal=" + wal.length() + "B pages=" + pageCount
+                + "x" + pageSize + "B free=" + freePages + " ("
+                + (pageCount == 0 ? 0 : freePages * 100 / pageCount) + "%)";
+    }
+
+    private boolean isIdleAndCharging() {
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int status = battery == null ? -1
+                : battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return charging && pm != null && !pm.isInteractive();
+    }
+}
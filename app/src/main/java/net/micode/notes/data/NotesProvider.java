@@ -19,21 +19,42 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.FolderStatsColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteDataColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;
@@ -42,6 +63,23 @@ public class NotesProvider extends ContentProvider {
 
     private static final String TAG = "NotesProvider";
 
+    /**
+     * A batch gives other connections a chance to write after at most this many operations,
+     * operations marked as yield allowed are yield points as well.
+     */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    private NotifyDispatcher mNotifyDispatcher;
+
+    private final NoteRowCache mRowCache = NoteRowCache.getInstance();
+
+    /**
+     * Debug hook for {@link #call}, returns the hit and miss counts of the note row cache
+     */
+    public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+
+    private FolderRegistry mFolderRegistry;
+
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
     private static final int URI_DATA            = 3;
@@ -50,6 +88,33 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_FOLDER_STATS      = 7;
+    private static final int URI_FOLDER_STATS_ITEM = 8;
+
+    private static final int URI_DEBUG_STATS        = 9;
+    private static final int URI_DEBUG_SLOW_QUERIES = 10;
+
+    private static final int URI_NOTE_DATA          = 11;
+
+    /**
+     * Latency histograms per operation and uri, only served by debuggable builds
+     */
+    public static final Uri CONTENT_DEBUG_STATS_URI =
+            Uri.parse("content://" + Notes.AUTHORITY + "/debug/stats");
+
+    /**
+     * The recent slow calls with their query plans, only served by debuggable builds
+     */
+    public static final Uri CONTENT_DEBUG_SLOW_QUERIES_URI =
+            Uri.parse("content://" + Notes.AUTHORITY + "/debug/slow_queries");
+
+    private final ProviderStats mStats = new ProviderStats();
+
+    /**
+     * Explains the plans of slow calls, so the caller does not wait for it
+     */
+    private final ExecutorService mPlanExecutor = Executors.newSingleThreadExecutor();
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
@@ -59,55 +124,248 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
+        mMatcher.addURI(Notes.AUTHORITY, "folder_stats", URI_FOLDER_STATS);
+        mMatcher.addURI(Notes.AUTHORITY, "folder_stats/#", URI_FOLDER_STATS_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "debug/stats", URI_DEBUG_STATS);
+        mMatcher.addURI(Notes.AUTHORITY, "debug/slow_queries", URI_DEBUG_SLOW_QUERIES);
+        mMatcher.addURI(Notes.AUTHORITY, "note_data", URI_NOTE_DATA);
     }
 
     /**
-     * x'0A' represents the '\n' character in sqlite. For title and content in the search result,
-     * we will trim '\n' and white space in order to show more information.
+     * Notes marked as deleted, and the notes of folders marked as deleted, are hidden from
+     * every query until {@link TrashPurger} removes them.
+     */
+    private static final String NOTE_VISIBLE_SELECTION = "(" + NoteColumns.DELETED + "=0 AND "
+        + NoteColumns.PARENT_ID + " NOT IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+        + " WHERE " + NoteColumns.DELETED + "=1))";
+
+    /**
+     * Data rows are hidden together with their note. The note and its folder are looked up
+     * by primary key for each row the other terms select, so the filter does not decide
+     * which index the data query uses.
+     */
+    private static final String DATA_VISIBLE_SELECTION = "EXISTS (SELECT 1 FROM " + TABLE.NOTE
+        + " AS data_note LEFT JOIN " + TABLE.NOTE + " AS data_folder ON data_folder."
+        + NoteColumns.ID + "=data_note." + NoteColumns.PARENT_ID
+        + " WHERE data_note." + NoteColumns.ID + "=" + TABLE.DATA + "." + DataColumns.NOTE_ID
+        + " AND data_note." + NoteColumns.DELETED + "=0"
+        + " AND IFNULL(data_folder." + NoteColumns.DELETED + ", 0)=0)";
+
+    /**
+     * The search result shows the note preview, which is already the trimmed first line of
+     * the content with a bounded length, and a short window of the best matching data row
+     * around its hits. The intent extra carries the match offsets for the editor, see
+     * {@link Notes#SEARCH_MATCH_SEPARATOR}, but only for the text of the note, the offsets of
+     * any other data row do not apply to what the editor shows.
      */
     private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
-        + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + NoteColumns.ID + " || IFNULL('" + Notes.SEARCH_MATCH_SEPARATOR
+        + "' || match_offsets, '') AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+        + NoteColumns.PREVIEW + " AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "IFNULL(match_snippet, " + NoteColumns.PREVIEW + ") AS "
+        + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
-        + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+    /**
+     * Number of hits of a full text match. offsets() returns four space separated integers
+     * per matched term, so the hit count is derived from the number of separators.
+     */
+    private static final String FTS_MATCH_HITS = "(LENGTH(OFFSETS(" + TABLE.DATA_FTS + "))"
+        + " - LENGTH(REPLACE(OFFSETS(" + TABLE.DATA_FTS + "), ' ', '')) + 1) / 4";
+
+    /**
+     * Words of context snippet() keeps around the hits
+     */
+    private static final int FTS_SNIPPET_TOKENS = 12;
+
+    private static final String FTS_MATCH_SNIPPET = "SNIPPET(" + TABLE.DATA_FTS
+        + ", '', '', '\u2026', -1, " + FTS_SNIPPET_TOKENS + ")";
+
+    /**
+     * Search against the full text index of the data content. A note is ranked by its best
+     * matching data row, more recently modified notes win on ties. The offsets and the
+     * snippet are bare columns next to MAX(), sqlite takes them from the best row. The inner
+     * query has a LIMIT so it is not flattened into the GROUP BY, the fts functions cannot be
+     * evaluated in an aggregate query.
+     * <p>
+     * The tokenizer only splits on spaces and punctuation, a word inside a CJK sentence or
+     * the middle of a latin word is not a token prefix. When the index matches nothing the
+     * search falls back to {@link #NOTES_LIKE_SEARCH_QUERY}.
+     */
+    private static final String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE + " JOIN ("
+        + "SELECT match_note_id, MAX(match_hits) AS match_rank, match_offsets, match_snippet"
+        + " FROM (SELECT " + TABLE.DATA + "." + DataColumns.NOTE_ID + " AS match_note_id,"
+        + FTS_MATCH_HITS + " AS match_hits,"
+        + " CASE WHEN " + TABLE.DATA + "." + DataColumns.MIME_TYPE + "='"
+        + Notes.DataConstants.NOTE + "' THEN OFFSETS(" + TABLE.DATA_FTS + ")"
+        + " END AS match_offsets,"
+        + FTS_MATCH_SNIPPET + " AS match_snippet"
+        + " FROM " + TABLE.DATA_FTS + " JOIN " + TABLE.DATA
+        + " ON " + TABLE.DATA + "." + DataColumns.ID + "=" + TABLE.DATA_FTS + ".docid"
+        + " WHERE " + TABLE.DATA_FTS + " MATCH ? LIMIT -1)"
+        + " GROUP BY match_note_id"
+        + ") ON " + NoteColumns.ID + "=match_note_id"
+        + " WHERE " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " AND " + NOTE_VISIBLE_SELECTION
+        + " ORDER BY match_rank DESC, " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * The search the app ran before the full text index existed, it scans the text of every
+     * note and so only runs when the index matches nothing, mostly for words inside a CJK
+     * sentence or inside a latin word
+     */
+    private static final String NOTES_LIKE_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM (SELECT *, NULL AS match_offsets, NULL AS match_snippet FROM " + TABLE.NOTE
+        + ") WHERE " + NoteColumns.SNIPPET + " LIKE ?"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
-        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " AND " + NOTE_VISIBLE_SELECTION
+        + " ORDER BY " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * Notes joined with their data rows. The note columns keep their names, the data id is
+     * renamed since both tables have an _id.
+     */
+    private static final String NOTE_DATA_TABLES = TABLE.NOTE + " LEFT JOIN " + TABLE.DATA
+        + " ON " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID;
+
+    /**
+     * The notes_count column of the note table is no longer maintained since folder_stats
+     * replaced its triggers. A projection asking for it gets the count of folder_stats.
+     */
+    private static final String NOTES_COUNT_PROJECTION = "IFNULL((SELECT "
+        + FolderStatsColumns.NOTES_COUNT + " FROM " + TABLE.FOLDER_STATS + " WHERE "
+        + FolderStatsColumns.FOLDER_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + "),0) AS "
+        + NoteColumns.NOTES_COUNT;
+
+    private static final HashMap<String, String> NOTE_DATA_PROJECTION_MAP;
+
+    static {
+        NOTE_DATA_PROJECTION_MAP = new HashMap<String, String>();
+        for (String column : new String[] {
+                NoteColumns.ID, NoteColumns.PARENT_ID, NoteColumns.CREATED_DATE,
+                NoteColumns.MODIFIED_DATE, NoteColumns.ALERTED_DATE, NoteColumns.SNIPPET,
+                NoteColumns.PREVIEW, NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE,
+                NoteColumns.BG_COLOR_ID, NoteColumns.HAS_ATTACHMENT, NoteColumns.TYPE,
+                NoteColumns.SYNC_ID, NoteColumns.LOCAL_MODIFIED, NoteColumns.ORIGIN_PARENT_ID,
+                NoteColumns.GTASK_ID, NoteColumns.VERSION }) {
+            NOTE_DATA_PROJECTION_MAP.put(column, TABLE.NOTE + "." + column + " AS " + column);
+        }
+        NOTE_DATA_PROJECTION_MAP.put(NoteColumns.NOTES_COUNT, NOTES_COUNT_PROJECTION);
+        NOTE_DATA_PROJECTION_MAP.put(NoteDataColumns.DATA_ID, TABLE.DATA + "." + DataColumns.ID
+                + " AS " + NoteDataColumns.DATA_ID);
+        for (String column : new String[] {
+                NoteDataColumns.MIME_TYPE, NoteDataColumns.NOTE_ID, NoteDataColumns.CONTENT,
+                NoteDataColumns.DATA1, NoteDataColumns.DATA2, NoteDataColumns.DATA3,
+                NoteDataColumns.DATA4, NoteDataColumns.DATA5 }) {
+            NOTE_DATA_PROJECTION_MAP.put(column, TABLE.DATA + "." + column + " AS " + column);
+        }
+    }
+
+    /**
+     * Rows of a note stay together whatever order the caller asks for
+     */
+    private static final String NOTE_DATA_GROUP_ORDER = TABLE.NOTE + "." + NoteColumns.ID + ","
+        + TABLE.DATA + "." + DataColumns.ID;
 
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mNotifyDispatcher = new NotifyDispatcher(getContext().getContentResolver());
+        mFolderRegistry = FolderRegistry.getInstance(getContext());
+        // finish the purge an earlier process may have left behind
+        TrashPurger.getInstance(getContext()).schedule();
+        NotesMaintenance.getInstance(getContext()).schedule();
         return true;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        int match = mMatcher.match(uri);
+        if (match == URI_DEBUG_STATS || match == URI_DEBUG_SLOW_QUERIES) {
+            if ((getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            return match == URI_DEBUG_STATS ? mStats.getStatsCursor()
+                    : mStats.getSlowQueryCursor();
+        }
+
+        long start = System.nanoTime();
+        Cursor c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+        // counting fills the cursor, so the time includes running the query, not only preparing it
+        int rows = c == null ? 0 : c.getCount();
+        recordCall("query", match, uri, selection, selectionArgs, start, rows);
+        return c;
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         Cursor c = null;
         SQLiteDatabase db = mHelper.getReadableDatabase();
         String id = null;
+        String[] noteProjection = null;
+        boolean includeDeleted = uri.getBooleanQueryParameter(Notes.PARAM_INCLUDE_DELETED,
+                false);
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                if (includeDeleted) {
+                    c = db.query(TABLE.NOTE, mapNotesCount(projection), selection,
+                            selectionArgs, null, null, sortOrder);
+                    break;
+                }
+                String limit = uri.getQueryParameter(Notes.PARAM_LIMIT);
+                long noteId = getLookupNoteId(NoteColumns.ID, selection, selectionArgs);
+                // a counted folder changes with the notes moved in and out, it is not cached
+                noteProjection = mapNotesCount(projection);
+                if (limit == null && noteId > 0 && noteProjection == projection) {
+                    c = queryNoteRows(db, new NoteRowCache.Key(NoteRowCache.KIND_NOTE, noteId,
+                            projection, sortOrder));
+                } else if (limit != null) {
+                    c = queryNotePage(db, noteProjection, NOTE_VISIBLE_SELECTION
+                            + parseSelection(selection), selectionArgs, limit,
+                            uri.getQueryParameter(Notes.PARAM_AFTER));
+                } else {
+                    c = db.query(TABLE.NOTE, noteProjection, NOTE_VISIBLE_SELECTION
+                            + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                }
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                noteProjection = mapNotesCount(projection);
+                if (includeDeleted) {
+                    c = db.query(TABLE.NOTE, noteProjection, NoteColumns.ID + "=" + id
+                            + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                } else if (TextUtils.isEmpty(selection) && noteProjection == projection) {
+                    c = queryNoteRows(db, new NoteRowCache.Key(NoteRowCache.KIND_NOTE,
+                            Long.parseLong(id), projection, sortOrder));
+                } else {
+                    c = db.query(TABLE.NOTE, noteProjection, NoteColumns.ID + "=" + id + " AND "
+                            + NOTE_VISIBLE_SELECTION + parseSelection(selection), selectionArgs,
+                            null, null, sortOrder);
+                }
                 break;
             case URI_DATA:
-                c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                long dataNoteId = getLookupNoteId(DataColumns.NOTE_ID, selection, selectionArgs);
+                if (includeDeleted) {
+                    c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
+                            sortOrder);
+                } else if (dataNoteId > 0) {
+                    c = queryNoteRows(db, new NoteRowCache.Key(NoteRowCache.KIND_DATA,
+                            dataNoteId, projection, sortOrder));
+                } else {
+                    c = db.query(TABLE.DATA, projection, DATA_VISIBLE_SELECTION
+                            + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                }
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
                 c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
+                        + (includeDeleted ? "" : " AND " + DATA_VISIBLE_SELECTION)
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
             case URI_SEARCH:
@@ -117,43 +375,157 @@ public class NotesProvider extends ContentProvider {
                             "do not specify sortOrder, selection, selectionArgs, or projection" + "with this query");
                 }
 
-                String searchString = null;
-                if (mMatcher.match(uri) == URI_SEARCH_SUGGEST) {
-                    if (uri.getPathSegments().size() > 1) {
-                        searchString = uri.getPathSegments().get(1);
-                    }
-                } else {
-                    searchString = uri.getQueryParameter("pattern");
+                String searchString = getSearchString(uri);
+                if (TextUtils.isEmpty(searchString)) {
+                    return null;
                 }
 
-                if (TextUtils.isEmpty(searchString)) {
+                String matchQuery = buildMatchQuery(searchString);
+                if (matchQuery == null) {
                     return null;
                 }
 
+                String sql = NOTES_FTS_SEARCH_QUERY;
+                String likeSql = NOTES_LIKE_SEARCH_QUERY;
+                String suggestLimit = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+                boolean limited = !TextUtils.isEmpty(suggestLimit)
+                        && TextUtils.isDigitsOnly(suggestLimit);
+                if (limited) {
+                    sql += " LIMIT " + suggestLimit;
+                    likeSql += " LIMIT " + suggestLimit;
+                }
+
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    c = db.rawQuery(sql, new String[] { matchQuery });
+                    if (c.getCount() == 0) {
+                        c.close();
+                        c = db.rawQuery(likeSql, new String[] { "%" + searchString + "%" });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "bad match query " + matchQuery + ": " + ex.toString());
                 }
                 break;
+            case URI_NOTE_DATA:
+                SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+                builder.setTables(NOTE_DATA_TABLES);
+                builder.setProjectionMap(NOTE_DATA_PROJECTION_MAP);
+                builder.appendWhere(NOTE_VISIBLE_SELECTION);
+                c = builder.query(db, projection, selection, selectionArgs, null, null,
+                        TextUtils.isEmpty(sortOrder) ? NOTE_DATA_GROUP_ORDER
+                                : sortOrder + "," + NOTE_DATA_GROUP_ORDER);
+                break;
+            case URI_FOLDER_STATS:
+                c = db.query(TABLE.FOLDER_STATS, projection, selection, selectionArgs, null,
+                        null, sortOrder);
+                break;
+            case URI_FOLDER_STATS_ITEM:
+                id = uri.getPathSegments().get(1);
+                c = db.query(TABLE.FOLDER_STATS, projection, FolderStatsColumns.FOLDER_ID + "="
+                        + id + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+            /**
+             * Folder stats are maintained by triggers on the note table and change with it,
+             * every data change notifies the note uri as well
+             */
+            Uri notificationUri = uri;
+            int match = mMatcher.match(uri);
+            if (match == URI_FOLDER_STATS || match == URI_FOLDER_STATS_ITEM
+                    || match == URI_NOTE_DATA) {
+                notificationUri = Notes.CONTENT_NOTE_URI;
+            }
+            c.setNotificationUri(getContext().getContentResolver(), notificationUri);
         }
         return c;
     }
 
+    private String getSearchString(Uri uri) {
+        if (mMatcher.match(uri) == URI_SEARCH_SUGGEST) {
+            return uri.getPathSegments().size() > 1 ? uri.getPathSegments().get(1) : null;
+        }
+        return uri.getQueryParameter("pattern");
+    }
+
+    /**
+     * Paged order of the note list, matches the note_list_index so a page starts right at
+     * the end of the previous one instead of skipping rows with OFFSET.
+     */
+    private static final String NOTE_PAGE_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+        + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    private static final String NOTE_PAGE_AFTER_SELECTION = NoteColumns.TYPE + "<? OR ("
+        + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+        + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<?)))";
+
+    private Cursor queryNotePage(SQLiteDatabase db, String[] projection, String selection,
+            String[] selectionArgs, String limit, String after) {
+        if (!TextUtils.isDigitsOnly(limit) || limit.length() == 0) {
+            throw new IllegalArgumentException("Wrong page limit " + limit);
+        }
+
+        if (!TextUtils.isEmpty(after)) {
+            selection = getPageSelection(selection);
+            selectionArgs = getPageArgs(selectionArgs, after);
+        }
+        return db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                NOTE_PAGE_SORT_ORDER, limit);
+    }
+
+    private static String getPageSelection(String selection) {
+        return (TextUtils.isEmpty(selection) ? "" : "(" + selection + ") AND ")
+                + "(" + NOTE_PAGE_AFTER_SELECTION + ")";
+    }
+
+    /**
+     * The selection arguments followed by those of the page key "type,modified_date,_id"
+     */
+    private static String[] getPageArgs(String[] selectionArgs, String after) {
+        String[] key = after.split(",");
+        if (key.length != 3) {
+            throw new IllegalArgumentException("Wrong page key " + after);
+        }
+        try {
+            String type = String.valueOf(Long.parseLong(key[0].trim()));
+            String modifiedDate = String.valueOf(Long.parseLong(key[1].trim()));
+            String id = String.valueOf(Long.parseLong(key[2].trim()));
+            String[] keyArgs = new String[] {
+                    type, type, modifiedDate, modifiedDate, id
+            };
+            int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+            String[] args = new String[argCount + keyArgs.length];
+            if (argCount > 0) {
+                System.arraycopy(selectionArgs, 0, args, 0, argCount);
+            }
+            System.arraycopy(keyArgs, 0, args, argCount, keyArgs.length);
+            return args;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong page key " + after);
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = System.nanoTime();
+        Uri result = insertInternal(uri, values);
+        recordCall("insert", mMatcher.match(uri), uri, null, null, start, 1);
+        return result;
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         SQLiteDatabase db = mHelper.getWritableDatabase();
         long dataId = 0, noteId = 0, insertedId = 0;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                insertedId = noteId = db.insert(TABLE.NOTE, null, values);
+                insertedId = noteId = insertRow(db, TABLE.NOTE, values);
+                Integer type = values.getAsInteger(NoteColumns.TYPE);
+                if (type != null && type != Notes.TYPE_NOTE) {
+                    mFolderRegistry.invalidate();
+                }
                 break;
             case URI_DATA:
                 if (values.containsKey(DataColumns.NOTE_ID)) {
@@ -161,21 +533,27 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                insertedId = dataId = insertRow(db, TABLE.DATA, withPhoneKey(values));
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        if (noteId > 0) {
+            invalidateNote(noteId);
+        } else {
+            invalidateAll();
+        }
+
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(
+                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -183,14 +561,28 @@ public class NotesProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int count = deleteInternal(uri, selection, selectionArgs);
+        recordCall("delete", mMatcher.match(uri), uri, selection, selectionArgs, start, count);
+        return count;
+    }
+
+    private int deleteInternal(Uri uri, String selection, String[] selectionArgs) {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean deleteData = false;
+        boolean invalidateAll = false;
+        long dataNoteId = 0;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
-                count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                boolean deleteFolders = selectsFolder(db, selection, selectionArgs);
+                count = markNotesDeleted(db, selection, selectionArgs);
+                if (count > 0 && deleteFolders) {
+                    mFolderRegistry.invalidate();
+                }
+                invalidateAll = true;
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -202,15 +594,22 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
+                count = markNotesDeleted(db,
                         NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                if (count > 0) {
+                    mFolderRegistry.invalidateFolder(noteId);
+                }
+                // a deleted folder hides its notes as well
+                invalidateAll = true;
                 break;
             case URI_DATA:
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
                 deleteData = true;
+                invalidateAll = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
+                dataNoteId = getNoteIdOfData(db, id);
                 count = db.delete(TABLE.DATA,
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
@@ -219,39 +618,73 @@ public class NotesProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
+            invalidateRows(invalidateAll, 0, dataNoteId);
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int count = updateInternal(uri, values, selection, selectionArgs);
+        recordCall("update", mMatcher.match(uri), uri, selection, selectionArgs, start, count);
+        return count;
+    }
+
+    private int updateInternal(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean updateData = false;
+        boolean invalidateAll = false;
+        long noteId = 0, dataNoteId = 0;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                // checked before the write, which may change what the selection matches
+                boolean updateFolders = selectsFolder(db, selection, selectionArgs);
+                count = updateRow(db, TABLE.NOTE, values, NOTE_VERSION_INCREMENT, selection,
+                        selectionArgs);
+                invalidateAll = true;
+                if (count > 0 && updateFolders) {
+                    mFolderRegistry.invalidate();
+                }
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                noteId = Long.parseLong(id);
+                count = updateRow(db, TABLE.NOTE, values, NOTE_VERSION_INCREMENT,
+                        NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
+                if (count > 0) {
+                    if (values.containsKey(NoteColumns.TYPE)) {
+                        // the note may have become a folder
+                        mFolderRegistry.invalidate();
+                    } else {
+                        mFolderRegistry.invalidateFolder(noteId);
+                    }
+                }
                 break;
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                count = updateRow(db, TABLE.DATA, withPhoneKey(values), null, selection,
+                        selectionArgs);
                 updateData = true;
+                invalidateAll = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                dataNoteId = getNoteIdOfData(db, id);
+                if (values.containsKey(DataColumns.NOTE_ID)) {
+                    // the row moves to another note, both of them change
+                    noteId = values.getAsLong(DataColumns.NOTE_ID);
+                }
+                count = updateRow(db, TABLE.DATA, withPhoneKey(values), null,
+                        DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
                 updateData = true;
                 break;
             default:
@@ -259,41 +692,520 @@ public class NotesProvider extends ContentProvider {
         }
 
         if (count > 0) {
+            invalidateRows(invalidateAll, noteId, dataNoteId);
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            int opsSinceYield = 0;
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (++opsSinceYield > MAX_OPERATIONS_PER_YIELD_POINT
+                        || (i > 0 && operation.isYieldAllowed())) {
+                    db.yieldIfContendedSafely();
+                    opsSinceYield = 0;
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            endBatch(db);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % MAX_OPERATIONS_PER_YIELD_POINT == 0) {
+                    db.yieldIfContendedSafely();
+                }
+                insert(uri, values[i]);
+            }
+            db.setTransactionSuccessful();
+            return values.length;
+        } finally {
+            endBatch(db);
+        }
+    }
+
+    private void beginBatch(SQLiteDatabase db) {
+        mNotifyDispatcher.beginBatch();
+        mRowCache.beginBatch();
+        mFolderRegistry.beginBatch();
+        db.beginTransaction();
+    }
+
+    private void endBatch(SQLiteDatabase db) {
+        try {
+            db.endTransaction();
+        } finally {
+            mFolderRegistry.endBatch();
+            mRowCache.endBatch();
+            mNotifyDispatcher.endBatch();
+        }
+    }
+
+    /**
+     * Returns the note id of a lookup of the form "column=?", e.g. how the editor and the
+     * sync load a note and its data, or 0 for any other selection
+     */
+    private static long getLookupNoteId(String column, String selection, String[] selectionArgs) {
+        if (selection == null || selectionArgs == null || selectionArgs.length != 1) {
+            return 0;
+        }
+        String normalized = selection.replace(" ", "");
+        while (normalized.startsWith("(") && normalized.endsWith(")")) {
+            normalized = normalized.substring(1, normalized.length() - 1);
+        }
+        if (!normalized.equals(column + "=?")) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(selectionArgs[0]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Serve a per note lookup from the row cache, on a miss the rows are read and cached
+     */
+    private Cursor queryNoteRows(SQLiteDatabase db, NoteRowCache.Key key) {
+        Cursor c = mRowCache.get(key);
+        if (c != null) {
+            return c;
+        }
+        long generation = mRowCache.getGeneration();
+        c = loadNoteRows(db, key);
+        if (c != null) {
+            mRowCache.put(key, c, generation);
+        }
+        return c;
+    }
+
+    private Cursor loadNoteRows(SQLiteDatabase db, NoteRowCache.Key key) {
+        if (key.kind == NoteRowCache.KIND_NOTE) {
+            return db.query(TABLE.NOTE, key.projection, NoteColumns.ID + "=" + key.noteId
+                    + " AND " + NOTE_VISIBLE_SELECTION, null, null, null, key.sortOrder);
+        }
+        return db.query(TABLE.DATA, key.projection, DataColumns.NOTE_ID + "=" + key.noteId
+                + " AND " + DATA_VISIBLE_SELECTION, null, null, null, key.sortOrder);
+    }
+
+    private void invalidateNote(long noteId) {
+        mRowCache.invalidateNote(noteId);
+    }
+
+    private void invalidateAll() {
+        mRowCache.invalidateAll();
+    }
+
+    private void invalidateRows(boolean all, long noteId, long dataNoteId) {
+        if (all) {
+            invalidateAll();
+            return;
+        }
+        if (noteId > 0) {
+            invalidateNote(noteId);
+        }
+        if (dataNoteId > 0) {
+            invalidateNote(dataNoteId);
+        } else if (dataNoteId < 0) {
+            invalidateAll();
+        }
+    }
+
+    private static final String DATA_NOTE_ID_QUERY = "SELECT " + DataColumns.NOTE_ID
+        + " FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "=?";
+
+    /**
+     * Returns the note a data row belongs to, or -1 if the row does not exist
+     */
+    private long getNoteIdOfData(SQLiteDatabase db, String dataId) {
+        SQLiteStatement statement = db.compileStatement(DATA_NOTE_ID_QUERY);
+        try {
+            statement.bindString(1, dataId);
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        mNotifyDispatcher.notifyChange(uri);
+    }
+
+    /**
+     * Exposes the dispatcher counters, e.g. how many notifications were suppressed
+     */
+    public NotifyDispatcher getNotifyDispatcher() {
+        return mNotifyDispatcher;
+    }
+
+    /**
+     * Turn the user input into a full text MATCH expression. Every whitespace separated word
+     * is quoted so that FTS operators typed by the user are taken literally, and gets a
+     * trailing '*' so it matches as a prefix. Words are implicitly ANDed.
+     */
+    private static String buildMatchQuery(String searchString) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : searchString.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.length() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append("*\"");
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Whether the notes a write selects include a folder, writes to plain notes leave the
+     * folder registry as it is
+     */
+    private boolean selectsFolder(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        return DatabaseUtils.queryNumEntries(db, TABLE.NOTE, NoteColumns.TYPE + "<>"
+                + Notes.TYPE_NOTE + parseSelection(selection), selectionArgs) > 0;
+    }
+
+    /**
+     * The projection with notes_count taken from folder_stats, the same array if it does not
+     * ask for the count
+     */
+    private static String[] mapNotesCount(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        String[] mapped = projection;
+        for (int i = 0; i < projection.length; i++) {
+            if (NoteColumns.NOTES_COUNT.equals(projection[i])) {
+                if (mapped == projection) {
+                    mapped = projection.clone();
+                }
+                mapped[i] = NOTES_COUNT_PROJECTION;
+            }
+        }
+        return mapped;
+    }
+
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+    /**
+     * Deleting notes only marks them, which hides them and the notes of deleted folders at
+     * once. The rows are removed by the purge worker in small chunks later.
+     */
+    private int markNotesDeleted(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.DELETED, 1);
+        int count = updateRow(db, TABLE.NOTE, values, null, "(" + selection + ") AND "
+                + NoteColumns.DELETED + "=0", selectionArgs);
+        if (count > 0) {
+            TrashPurger.getInstance(getContext()).schedule();
+        }
+        return count;
+    }
+
+    /**
+     * The phone key is derived from the phone number by the provider, sqlite has no function
+     * to compute it. A caller's values are never modified.
+     */
+    private static ContentValues withPhoneKey(ContentValues values) {
+        if (values == null || !values.containsKey(CallNote.PHONE_NUMBER)) {
+            return values;
+        }
+        ContentValues result = new ContentValues(values);
+        result.put(CallNote.PHONE_KEY,
+                NotesDatabaseHelper.phoneKeyOf(values.getAsString(CallNote.PHONE_NUMBER)));
+        return result;
+    }
+
+    private static final String NOTE_VERSION_INCREMENT =
+            NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1";
+
+    private static String[] prependArg(String arg, String[] args) {
+        int argCount = args == null ? 0 : args.length;
+        String[] result = new String[argCount + 1];
+        result[0] = arg;
+        if (argCount > 0) {
+            System.arraycopy(args, 0, result, 1, argCount);
+        }
+        return result;
+    }
+
+    /**
+     * Insert a row through a compiled statement. The columns are sorted so every insert of the
+     * same column set has the same sql and reuses the statement the connection has prepared.
+     */
+    private long insertRow(SQLiteDatabase db, String table, ContentValues values) {
+        if (values == null || values.size() == 0) {
+            return db.insert(table, null, values);
+        }
+
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("INSERT INTO ");
+        sql.append(table);
+        sql.append('(');
+        StringBuilder params = new StringBuilder(columns.size() * 2);
+        for (String colName : columns) {
+            if (params.length() > 0) {
+                sql.append(',');
+                params.append(',');
+            }
+            sql.append(colName);
+            params.append('?');
+        }
+        sql.append(") VALUES(").append(params).append(')');
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            int i = 1;
+            for (String colName : columns) {
+                DatabaseUtils.bindObjectToProgram(statement, i++, values.get(colName));
+            }
+            return statement.executeInsert();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error inserting " + values + ": " + e.toString());
+            return -1;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Update rows through a compiled statement. The values and the selection arguments
+     * are bound instead of being spliced into the sql, extraSet is appended to the SET clause
+     * as is, e.g. to increase the note version in the same statement.
+     */
+    private int updateRow(SQLiteDatabase db, String table, ContentValues values,
+            String extraSet, String selection, String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
         StringBuilder sql = new StringBuilder(120);
         sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
+        sql.append(table);
         sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
-
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+        boolean first = true;
+        for (String colName : columns) {
+            if (!first) {
+                sql.append(',');
+            }
+            first = false;
+            sql.append(colName).append("=?");
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" +id);
+        if (extraSet != null) {
+            sql.append(',').append(extraSet);
         }
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+            sql.append(" WHERE ");
+            sql.append(selection);
+        }
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            int i = 1;
+            for (String colName : columns) {
+                DatabaseUtils.bindObjectToProgram(statement, i++, values.get(colName));
             }
-            sql.append(selectString);
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    DatabaseUtils.bindObjectToProgram(statement, i++, arg);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_ROW_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong("hits", mRowCache.getHitCount());
+            stats.putLong("misses", mRowCache.getMissCount());
+            stats.putFloat("hit_rate", mRowCache.getHitRate());
+            stats.putInt("entries", mRowCache.getSize());
+            return stats;
         }
+        return super.call(method, arg, extras);
+    }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+    private static String getMatchName(int match) {
+        switch (match) {
+            case URI_NOTE:
+                return "note";
+            case URI_NOTE_ITEM:
+                return "note/#";
+            case URI_DATA:
+                return "data";
+            case URI_DATA_ITEM:
+                return "data/#";
+            case URI_SEARCH:
+                return "search";
+            case URI_SEARCH_SUGGEST:
+                return "search_suggest";
+            case URI_FOLDER_STATS:
+                return "folder_stats";
+            case URI_FOLDER_STATS_ITEM:
+                return "folder_stats/#";
+            case URI_NOTE_DATA:
+                return "note_data";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Add the call to the histograms, a slow call is logged with the plan of its selection.
+     * The plan is explained in the background with the arguments of the call bound.
+     */
+    private void recordCall(String operation, int match, Uri uri, String selection,
+            String[] selectionArgs, long start, final int rows) {
+        final String name = operation + " " + getMatchName(match);
+        final long durationMs = mStats.record(name, start, rows);
+        if (!ProviderStats.isSlow(durationMs)) {
+            return;
+        }
+        Log.w(TAG, "slow " + name + " took " + durationMs + "ms for " + rows + " rows");
+
+        final String planSql = getPlanSql(match, uri, selection);
+        final String[] planArgs = getPlanArgs(match, uri, selectionArgs);
+        final String shownSql = planSql != null ? planSql : selection;
+        mPlanExecutor.execute(new Runnable() {
+            public void run() {
+                String plan = planSql == null ? null : explainQueryPlan(planSql, planArgs);
+                mStats.recordSlowQuery(name, durationMs, rows, shownSql, plan);
+            }
+        });
+    }
+
+    /**
+     * The statement whose plan explains a call, for updates and deletes the plan of selecting
+     * their rows
+     */
+    private String getPlanSql(int match, Uri uri, String selection) {
+        switch (match) {
+            case URI_NOTE:
+                String limit = uri.getQueryParameter(Notes.PARAM_LIMIT);
+                if (TextUtils.isEmpty(limit)) {
+                    return "SELECT * FROM " + TABLE.NOTE + " WHERE " + NOTE_VISIBLE_SELECTION
+                            + parseSelection(selection);
+                }
+                String pageSelection = NOTE_VISIBLE_SELECTION + parseSelection(selection);
+                if (!TextUtils.isEmpty(uri.getQueryParameter(Notes.PARAM_AFTER))) {
+                    pageSelection = getPageSelection(pageSelection);
+                }
+                return "SELECT * FROM " + TABLE.NOTE + " WHERE " + pageSelection
+                        + " ORDER BY " + NOTE_PAGE_SORT_ORDER
+                        + (TextUtils.isDigitsOnly(limit) ? " LIMIT " + limit : "");
+            case URI_NOTE_ITEM:
+                return "SELECT * FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "="
+                        + uri.getPathSegments().get(1) + parseSelection(selection);
+            case URI_DATA:
+                return "SELECT * FROM " + TABLE.DATA + " WHERE " + DATA_VISIBLE_SELECTION
+                        + parseSelection(selection);
+            case URI_DATA_ITEM:
+                return "SELECT * FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "="
+                        + uri.getPathSegments().get(1) + " AND " + DATA_VISIBLE_SELECTION
+                        + parseSelection(selection);
+            case URI_SEARCH:
+            case URI_SEARCH_SUGGEST:
+                return NOTES_FTS_SEARCH_QUERY;
+            case URI_NOTE_DATA:
+                return "SELECT * FROM " + NOTE_DATA_TABLES + " WHERE " + NOTE_VISIBLE_SELECTION
+                        + parseSelection(selection) + " ORDER BY " + NOTE_DATA_GROUP_ORDER;
+            case URI_FOLDER_STATS:
+                return "SELECT * FROM " + TABLE.FOLDER_STATS
+                        + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection);
+            case URI_FOLDER_STATS_ITEM:
+                return "SELECT * FROM " + TABLE.FOLDER_STATS + " WHERE "
+                        + FolderStatsColumns.FOLDER_ID + "=" + uri.getPathSegments().get(1)
+                        + parseSelection(selection);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The arguments the call bound to the statement of {@link #getPlanSql}
+     */
+    private String[] getPlanArgs(int match, Uri uri, String[] selectionArgs) {
+        switch (match) {
+            case URI_NOTE:
+                String after = uri.getQueryParameter(Notes.PARAM_AFTER);
+                if (!TextUtils.isEmpty(uri.getQueryParameter(Notes.PARAM_LIMIT))
+                        && !TextUtils.isEmpty(after)) {
+                    return getPageArgs(selectionArgs, after);
+                }
+                return selectionArgs;
+            case URI_SEARCH:
+            case URI_SEARCH_SUGGEST:
+                String searchString = getSearchString(uri);
+                String matchQuery = TextUtils.isEmpty(searchString) ? null
+                        : buildMatchQuery(searchString);
+                return matchQuery == null ? null : new String[] { matchQuery };
+            default:
+                return selectionArgs;
+        }
+    }
+
+    private String explainQueryPlan(String sql, String[] args) {
+        Cursor c = null;
+        try {
+            c = mHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            int detailColumn = c.getColumnIndex("detail");
+            StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append("; ");
+                }
+                sb.append(c.getString(detailColumn));
+            }
+            return sb.toString();
+        } catch (SQLiteException e) {
+            return "no plan: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            // e.g. more arguments than the statement has parameters
+            return "no plan: " + e.getMessage();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+        writer.println("Last maintenance: "
+                + NotesMaintenance.getInstance(getContext()).getLastReport());
     }
 
     @Override
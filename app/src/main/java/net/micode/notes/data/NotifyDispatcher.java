@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the uris touched by the provider and notifies each of them once.
+ * <p>
+ * Inside a batch the uris are collected until the batch ends, outside of a batch they are
+ * collected for a short window. At flush the set is reduced to the broadest affected uris:
+ * a uri whose ancestor is also pending is dropped, and several items of one directory are
+ * replaced by the directory. Notifying a uri reaches the observers of its descendants too,
+ * so no observer misses a change.
+ */
+public class NotifyDispatcher {
+    /**
+     * How long notifications outside of a batch are held back to be merged with the following
+     * ones, in milliseconds
+     */
+    private static final long NOTIFY_WINDOW = 100;
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final ThreadLocal<Set<Uri>> mBatchUris = new ThreadLocal<Set<Uri>>();
+
+    private final Set<Uri> mPendingUris = new HashSet<Uri>();
+
+    private boolean mFlushScheduled;
+
+    private long mRequestedCount;
+
+    private long mDispatchedCount;
+
+    private final Runnable mFlushPending = new Runnable() {
+        public void run() {
+            Set<Uri> uris;
+            synchronized (NotifyDispatcher.this) {
+                uris = new HashSet<Uri>(mPendingUris);
+                mPendingUris.clear();
+                mFlushScheduled = false;
+            }
+            dispatch(uris);
+        }
+    };
+
+    public NotifyDispatcher(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start collecting the notifications of the current thread until {@link #endBatch()}
+     */
+    public void beginBatch() {
+        mBatchUris.set(new HashSet<Uri>());
+    }
+
+    /**
+     * Notify everything collected since {@link #beginBatch()}
+     */
+    public void endBatch() {
+        Set<Uri> uris = mBatchUris.get();
+        mBatchUris.remove();
+        if (uris != null) {
+            dispatch(uris);
+        }
+    }
+
+    public void notifyChange(Uri uri) {
+        synchronized (this) {
+            mRequestedCount++;
+        }
+
+        Set<Uri> batchUris = mBatchUris.get();
+        if (batchUris != null) {
+            batchUris.add(uri);
+            return;
+        }
+
+        synchronized (this) {
+            mPendingUris.add(uri);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushPending, NOTIFY_WINDOW);
+            }
+        }
+    }
+
+    public synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    public synchronized long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * Number of notifications that were merged into another one instead of being sent
+     */
+    public synchronized long getSuppressedCount() {
+        return mRequestedCount - mDispatchedCount;
+    }
+
+    private void dispatch(Set<Uri> uris) {
+        Set<Uri> reduced = reduce(uris);
+        synchronized (this) {
+            mDispatchedCount += reduced.size();
+        }
+        for (Uri uri : reduced) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    private static Set<Uri> reduce(Set<Uri> uris) {
+        // items sharing a directory collapse into the directory
+        Map<Uri, Integer> itemsPerDirectory = new HashMap<Uri, Integer>();
+        for (Uri uri : uris) {
+            Uri directory = getDirectoryUri(uri);
+            Integer count = itemsPerDirectory.get(directory);
+            itemsPerDirectory.put(directory, count == null ? 1 : count + 1);
+        }
+
+        Set<Uri> collapsed = new HashSet<Uri>();
+        for (Uri uri : uris) {
+            Uri directory = getDirectoryUri(uri);
+            collapsed.add(itemsPerDirectory.get(directory) > 1 ? directory : uri);
+        }
+
+        // drop the uris already covered by a pending ancestor
+        Set<Uri> result = new HashSet<Uri>();
+        for (Uri uri : collapsed) {
+            if (!hasAncestorIn(uri, collapsed)) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasAncestorIn(Uri uri, Set<Uri> uris) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+            if (uris.contains(builder.build())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Uri getDirectoryUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() <= 1) {
+            return uri;
+        }
+        return new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority())
+                .appendPath(segments.get(0)).build();
+    }
+}
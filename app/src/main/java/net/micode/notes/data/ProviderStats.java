@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency histograms and row counts of the provider calls, keyed by the operation and the
+ * matched uri, e.g. "query note/#". Calls slower than {@link #SLOW_THRESHOLD_MS} are also
+ * kept in a small log together with the shape of their selection and the query plan
+ * sqlite chose, which is what is needed to find a missing index.
+ */
+public class ProviderStats {
+    public static final long SLOW_THRESHOLD_MS = 50;
+
+    private static final int SLOW_LOG_SIZE = 32;
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds, the last bucket takes the rest
+     */
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500
+    };
+
+    public static final String[] STATS_COLUMNS = {
+            "name", "calls", "rows", "avg_ms", "max_ms", "histogram"
+    };
+
+    public static final String[] SLOW_QUERY_COLUMNS = {
+            "time", "name", "duration_ms", "rows", "selection", "plan"
+    };
+
+    private static class Histogram {
+        final long[] counts = new long[BUCKET_BOUNDS_MS.length + 1];
+
+        long calls;
+
+        long rows;
+
+        long totalNanos;
+
+        long maxNanos;
+    }
+
+    private static class SlowQuery {
+        final long time;
+
+        final String name;
+
+        final long durationMs;
+
+        final int rows;
+
+        final String selection;
+
+        final String plan;
+
+        SlowQuery(String name, long durationMs, int rows, String selection, String plan) {
+            this.time = System.currentTimeMillis();
+            this.name = name;
+            this.durationMs = durationMs;
+            this.rows = rows;
+            this.selection = selection;
+            this.plan = plan;
+        }
+    }
+
+    private final Map<String, Histogram> mHistograms = new TreeMap<String, Histogram>();
+
+    private final ArrayDeque<SlowQuery> mSlowQueries = new ArrayDeque<SlowQuery>(SLOW_LOG_SIZE);
+
+    /**
+     * Record one call, returns its duration in milliseconds
+     */
+    public long record(String name, long startNanos, int rows) {
+        long nanos = System.nanoTime() - startNanos;
+        long ms = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && ms >= BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+
+        synchronized (this) {
+            Histogram histogram = mHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                mHistograms.put(name, histogram);
+            }
+            histogram.counts[bucket]++;
+            histogram.calls++;
+            histogram.rows += Math.max(rows, 0);
+            histogram.totalNanos += nanos;
+            histogram.maxNanos = Math.max(histogram.maxNanos, nanos);
+        }
+        return ms;
+    }
+
+    public static boolean isSlow(long durationMs) {
+        return durationMs >= SLOW_THRESHOLD_MS;
+    }
+
+    public synchronized void recordSlowQuery(String name, long durationMs, int rows,
+            String selection, String plan) {
+        if (mSlowQueries.size() == SLOW_LOG_SIZE) {
+            mSlowQueries.removeFirst();
+        }
+        mSlowQueries.addLast(new SlowQuery(name, durationMs, rows, getSelectionShape(selection),
+                plan));
+    }
+
+    /**
+     * The selection with its literals replaced by '?', so calls differing only in the values
+     * look the same
+     */
+    public static String getSelectionShape(String selection) {
+        if (selection == null) {
+            return null;
+        }
+        return selection.replaceAll("'[^']*'", "?").replaceAll("\\b\\d+\\b", "?");
+    }
+
+    public synchronized Cursor getStatsCursor() {
+        MatrixCursor cursor = new MatrixCursor(STATS_COLUMNS, mHistograms.size());
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            cursor.addRow(new Object[] {
+                    entry.getKey(),
+                    histogram.calls,
+                    histogram.rows,
+                    histogram.totalNanos / 1000000f / histogram.calls,
+                    histogram.maxNanos / 1000000f,
+                    formatBuckets(histogram)
+            });
+        }
+        return cursor;
+    }
+
+    public synchronized Cursor getSlowQueryCursor() {
+        MatrixCursor cursor = new MatrixCursor(SLOW_QUERY_COLUMNS, mSlowQueries.size());
+        for (SlowQuery query : mSlowQueries) {
+            cursor.addRow(new Object[] {
+                    query.time, query.name, query.durationMs, query.rows, query.selection,
+                    query.plan
+            });
+        }
+        return cursor;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Provider calls (name: calls rows avg_ms max_ms [histogram]):");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            pw.printf("  %s: %d %d %.2f %.2f [%s]%n", entry.getKey(), histogram.calls,
+                    histogram.rows, histogram.totalNanos / 1000000f / histogram.calls,
+                    histogram.maxNanos / 1000000f, formatBuckets(histogram));
+        }
+        pw.println("Slow calls (>= " + SLOW_THRESHOLD_MS + "ms):");
+        for (SlowQuery query : mSlowQueries) {
+            pw.println("  " + query.name + " " + query.durationMs + "ms " + query.rows
+                    + " rows, selection: " + query.selection);
+            if (query.plan != null) {
+                pw.println("    plan: " + query.plan);
+            }
+        }
+    }
+
+    private static String formatBuckets(Histogram histogram) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.counts.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(i < BUCKET_BOUNDS_MS.length ? "<" + BUCKET_BOUNDS_MS[i]
+                    : ">=" + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1])
+                    .append(':').append(histogram.counts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Physically removes the notes the provider has only marked as deleted.
+ * <p>
+ * Deleting through the provider sets {@link NoteColumns#DELETED} on the note or folder, which
+ * hides it, and the notes of a deleted folder, at once. The purge then runs on a background
+ * thread in small chunks, each in its own transaction: first the notes inside deleted
+ * folders, then the deleted notes, then the deleted folders which are empty by then. Every
+ * chunk fires the usual delete triggers for its rows only, so no single statement cascades
+ * over a whole folder.
+ */
+public class TrashPurger {
+    private static final String TAG = "TrashPurger";
+
+    private static final int CHUNK_SIZE = 200;
+
+    private static final String NOTES_IN_DELETED_FOLDERS_CHUNK =
+            "DELETE FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID
+            + " IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE "
+            + NoteColumns.DELETED + "=1 AND " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE
+            + ") LIMIT " + CHUNK_SIZE + ")";
+
+    private static final String DELETED_NOTES_CHUNK =
+            "DELETE FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.DELETED + "=1"
+            + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " LIMIT " + CHUNK_SIZE + ")";
+
+    private static final String DELETED_FOLDERS_CHUNK =
+            "DELETE FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + " IN (SELECT "
+            + NoteColumns.ID + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.DELETED + "=1"
+            + " LIMIT " + CHUNK_SIZE + ")";
+
+    private static TrashPurger sInstance;
+
+    private final Context mContext;
+
+    private final NotesDatabaseHelper mHelper;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Object mPurgeLock = new Object();
+
+    private boolean mScheduled;
+
+    private final Runnable mPurge = new Runnable() {
+        public void run() {
+            synchronized (TrashPurger.this) {
+                mScheduled = false;
+            }
+            purgeNow();
+        }
+    };
+
+    public static synchronized TrashPurger getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TrashPurger(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TrashPurger(Context context) {
+        mContext = context;
+        mHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Purge in the background, a purge already waiting to run covers this request too
+     */
+    public synchronized void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.execute(mPurge);
+        }
+    }
+
+    /**
+     * Purge on the calling thread, e.g. before sync which must not see half deleted notes
+     */
+    public int purgeNow() {
+        synchronized (mPurgeLock) {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            int total = purge(db, NOTES_IN_DELETED_FOLDERS_CHUNK)
+                    + purge(db, DELETED_NOTES_CHUNK)
+                    + purge(db, DELETED_FOLDERS_CHUNK);
+            if (total > 0) {
+                NoteRowCache.getInstance().invalidateAll();
+                NotesMaintenance.getInstance(mContext).schedule();
+                Log.d(TAG, "purged " + total + " deleted notes");
+            }
+            return total;
+        }
+    }
+
+    private int purge(SQLiteDatabase db, String chunkSql) {
+        int total = 0;
+        int count;
+        SQLiteStatement statement = db.compileStatement(chunkSql);
+        try {
+            do {
+                db.beginTransaction();
+                try {
+                    count = statement.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                total += count;
+            } while (count > 0);
+        } finally {
+            statement.close();
+        }
+        return total;
+    }
+}
@@ -83,18 +83,23 @@ public class SqlData {
     }
 
     public SqlData(Context context, Cursor c) {
+        this(context, c, 0);
+    }
+
+    // columnOffset is where PROJECTION_DATA starts, e.g. in a note_data cursor
+    public SqlData(Context context, Cursor c, int columnOffset) {
         mContentResolver = context.getContentResolver();
         mIsCreate = false;
-        loadFromCursor(c);
+        loadFromCursor(c, columnOffset);
         mDiffDataValues = new ContentValues();
     }
 
-    private void loadFromCursor(Cursor c) {
-        mDataId = c.getLong(DATA_ID_COLUMN);
-        mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN);
-        mDataContent = c.getString(DATA_CONTENT_COLUMN);
-        mDataContentData1 = c.getLong(DATA_CONTENT_DATA_1_COLUMN);
-        mDataContentData3 = c.getString(DATA_CONTENT_DATA_3_COLUMN);
+    private void loadFromCursor(Cursor c, int columnOffset) {
+        mDataId = c.getLong(columnOffset + DATA_ID_COLUMN);
+        mDataMimeType = c.getString(columnOffset + DATA_MIME_TYPE_COLUMN);
+        mDataContent = c.getString(columnOffset + DATA_CONTENT_COLUMN);
+        mDataContentData1 = c.getLong(columnOffset + DATA_CONTENT_DATA_1_COLUMN);
+        mDataContentData3 = c.getString(columnOffset + DATA_CONTENT_DATA_3_COLUMN);
     }
 
     public void setContent(JSONObject js) throws JSONException {
@@ -24,9 +24,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
+import net.micode.notes.data.NoteDataReader;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteDataColumns;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
@@ -46,12 +48,24 @@ public class SqlNote {
     public static final String[] PROJECTION_NOTE = new String[] {
             NoteColumns.ID, NoteColumns.ALERTED_DATE, NoteColumns.BG_COLOR_ID,
             NoteColumns.CREATED_DATE, NoteColumns.HAS_ATTACHMENT, NoteColumns.MODIFIED_DATE,
-            NoteColumns.NOTES_COUNT, NoteColumns.PARENT_ID, NoteColumns.SNIPPET, NoteColumns.TYPE,
-            NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE, NoteColumns.SYNC_ID,
-            NoteColumns.LOCAL_MODIFIED, NoteColumns.ORIGIN_PARENT_ID, NoteColumns.GTASK_ID,
-            NoteColumns.VERSION
+            NoteColumns.PARENT_ID, NoteColumns.SNIPPET, NoteColumns.TYPE, NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE, NoteColumns.SYNC_ID, NoteColumns.LOCAL_MODIFIED,
+            NoteColumns.ORIGIN_PARENT_ID, NoteColumns.GTASK_ID, NoteColumns.VERSION
     };
 
+    // PROJECTION_NOTE followed by the columns of SqlData.PROJECTION_DATA, for note_data queries
+    public static final String[] PROJECTION_NOTE_DATA = new String[] {
+            NoteColumns.ID, NoteColumns.ALERTED_DATE, NoteColumns.BG_COLOR_ID,
+            NoteColumns.CREATED_DATE, NoteColumns.HAS_ATTACHMENT, NoteColumns.MODIFIED_DATE,
+            NoteColumns.PARENT_ID, NoteColumns.SNIPPET, NoteColumns.TYPE, NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE, NoteColumns.SYNC_ID, NoteColumns.LOCAL_MODIFIED,
+            NoteColumns.ORIGIN_PARENT_ID, NoteColumns.GTASK_ID, NoteColumns.VERSION,
+            NoteDataColumns.DATA_ID, NoteDataColumns.MIME_TYPE, NoteDataColumns.CONTENT,
+            NoteDataColumns.DATA1, NoteDataColumns.DATA3
+    };
+
+    public static final int DATA_COLUMN_OFFSET = 16;
+
     public static final int ID_COLUMN = 0;
 
     public static final int ALERTED_DATE_COLUMN = 1;
@@ -64,27 +78,25 @@ public class SqlNote {
 
     public static final int MODIFIED_DATE_COLUMN = 5;
 
-    public static final int NOTES_COUNT_COLUMN = 6;
+    public static final int PARENT_ID_COLUMN = 6;
 
-    public static final int PARENT_ID_COLUMN = 7;
+    public static final int SNIPPET_COLUMN = 7;
 
-    public static final int SNIPPET_COLUMN = 8;
+    public static final int TYPE_COLUMN = 8;
 
-    public static final int TYPE_COLUMN = 9;
+    public static final int WIDGET_ID_COLUMN = 9;
 
-    public static final int WIDGET_ID_COLUMN = 10;
+    public static final int WIDGET_TYPE_COLUMN = 10;
 
-    public static final int WIDGET_TYPE_COLUMN = 11;
+    public static final int SYNC_ID_COLUMN = 11;
 
-    public static final int SYNC_ID_COLUMN = 12;
+    public static final int LOCAL_MODIFIED_COLUMN = 12;
 
-    public static final int LOCAL_MODIFIED_COLUMN = 13;
+    public static final int ORIGIN_PARENT_ID_COLUMN = 13;
 
-    public static final int ORIGIN_PARENT_ID_COLUMN = 14;
+    public static final int GTASK_ID_COLUMN = 14;
 
-    public static final int GTASK_ID_COLUMN = 15;
-
-    public static final int VERSION_COLUMN = 16;
+    public static final int VERSION_COLUMN = 15;
 
     private Context mContext;
 
@@ -149,8 +161,14 @@ public class SqlNote {
         mIsCreate = false;
         loadFromCursor(c);
         mDataList = new ArrayList<SqlData>();
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
+        if (mType == Notes.TYPE_NOTE) {
+            if (NoteDataReader.isNoteDataCursor(c)) {
+                // the data rows are already in the cursor, no query per note
+                loadDataContent(NoteDataReader.forCurrentNote(c));
+            } else {
+                loadDataContent();
+            }
+        }
         mDiffNoteValues = new ContentValues();
     }
 
@@ -226,6 +244,16 @@ public class SqlNote {
         }
     }
 
+    private void loadDataContent(NoteDataReader reader) {
+        mDataList.clear();
+        while (reader.moveToNextData()) {
+            mDataList.add(new SqlData(mContext, reader.getCursor(), DATA_COLUMN_OFFSET));
+        }
+        if (mDataList.isEmpty()) {
+            Log.w(TAG, "it seems that the note has not data");
+        }
+    }
+
     public boolean setContent(JSONObject js) {
         try {
             JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
@@ -428,6 +456,14 @@ public class SqlNote {
         return mId;
     }
 
+    public ArrayList<Long> getDataIds() {
+        ArrayList<Long> ids = new ArrayList<Long>(mDataList.size());
+        for (SqlData data : mDataList) {
+            ids.add(data.getId());
+        }
+        return ids;
+    }
+
     public long getParentId() {
         return mParentId;
     }
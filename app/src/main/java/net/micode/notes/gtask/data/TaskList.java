@@ -223,11 +223,12 @@ public class TaskList extends Node {
     public boolean addChildTask(Task task) {
         boolean ret = false;
         if (task != null && !mChildren.contains(task)) {
+            // the prior sibling is the last child before the task is added
+            Task priorSibling = mChildren.isEmpty() ? null : mChildren.get(mChildren.size() - 1);
             ret = mChildren.add(task);
             if (ret) {
                 // need to set prior sibling and parent
-                task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
-                        .get(mChildren.size() - 1));
+                task.setPriorSibling(priorSibling);
                 task.setParent(this);
             }
         }
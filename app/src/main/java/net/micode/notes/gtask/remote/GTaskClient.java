@@ -22,8 +22,12 @@ import android.accounts.AccountManagerFuture;
 import android.app.Activity;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
+import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
@@ -38,9 +42,16 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
@@ -54,8 +65,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -70,6 +86,22 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    private static final String TEMP_GID_PREFIX = "temp:";
+
+    // the data of the page starts as the argument of this call
+    private static final String SETUP_CALL = "_setup(";
+
+    /**
+     * Requests which may run at the same time, e.g. fetching several task lists
+     */
+    public static final int MAX_CONCURRENT_REQUESTS = 8;
+
+    // too many update items may result in an error
+    private static final int MAX_UPDATE_ITEMS = 10;
+
+    // a post of creates only, e.g. the notes and metas of a first sync, takes more of them
+    private static final int MAX_CREATE_ITEMS = 200;
+
     private static GTaskClient mInstance = null;
 
     private DefaultHttpClient mHttpClient;
@@ -90,6 +122,19 @@ public class GTaskClient {
 
     private JSONArray mUpdateArray;
 
+    // gids of the nodes written since the last reset, with the last modified the server
+    // reported for them, null if it did not
+    private HashMap<String, Long> mCommittedStamps;
+
+    // nodes whose create action waits in the update array, by action id
+    private HashMap<String, Node> mPendingCreates;
+
+    // whether the update array holds nothing but creates
+    private boolean mCreatesOnly;
+
+    // the committed prior sibling each queued create was given, null for none, by action id
+    private HashMap<String, String> mCreatePriorSiblings;
+
     private GTaskClient() {
         mHttpClient = null;
         mGetUrl = GTASK_GET_URL;
@@ -100,6 +145,9 @@ public class GTaskClient {
         mActionId = 1;
         mAccount = null;
         mUpdateArray = null;
+        mCommittedStamps = new HashMap<String, Long>();
+        mPendingCreates = new HashMap<String, Node>();
+        mCreatePriorSiblings = new HashMap<String, String>();
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -231,7 +279,15 @@ public class GTaskClient {
         HttpParams httpParameters = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
         HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
+        // a pool of connections shared by the threads fetching task lists, all to one host
+        ConnManagerParams.setMaxTotalConnections(httpParameters, MAX_CONCURRENT_REQUESTS);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                new ConnPerRouteBean(MAX_CONCURRENT_REQUESTS));
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mHttpClient = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(httpParameters, schemeRegistry), httpParameters);
         BasicCookieStore localBasicCookieStore = new BasicCookieStore();
         mHttpClient.setCookieStore(localBasicCookieStore);
         HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
@@ -256,17 +312,7 @@ public class GTaskClient {
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
-            mClientVersion = js.getLong("v");
+            mClientVersion = readSetup(response.getEntity(), null);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -280,7 +326,7 @@ public class GTaskClient {
         return true;
     }
 
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
@@ -292,6 +338,25 @@ public class GTaskClient {
     }
 
     private String getResponseContent(HttpEntity entity) throws IOException {
+        InputStream input = getResponseStream(entity);
+        try {
+            InputStreamReader isr = new InputStreamReader(input);
+            BufferedReader br = new BufferedReader(isr);
+            StringBuilder sb = new StringBuilder();
+
+            while (true) {
+                String buff = br.readLine();
+                if (buff == null) {
+                    return sb.toString();
+                }
+                sb = sb.append(buff);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private InputStream getResponseStream(HttpEntity entity) throws IOException {
         String contentEncoding = null;
         if (entity.getContentEncoding() != null) {
             contentEncoding = entity.getContentEncoding().getValue();
@@ -305,21 +370,119 @@ public class GTaskClient {
             Inflater inflater = new Inflater(true);
             input = new InflaterInputStream(entity.getContent(), inflater);
         }
+        return input;
+    }
 
+    /**
+     * Read the data of the tasks page as it arrives: skip the html up to the setup call, then
+     * parse its argument, collecting the task lists if asked to. Returns the client version.
+     */
+    private long readSetup(HttpEntity entity, ArrayList<TaskList> tasklists)
+            throws IOException, JSONException {
+        Reader reader = new BufferedReader(new InputStreamReader(getResponseStream(entity),
+                "UTF-8"));
         try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
+            if (!skipPast(reader, SETUP_CALL)) {
+                throw new JSONException("no setup data in the page");
+            }
+            // only the argument is read, the rest of the page is not
+            JsonReader jsReader = new JsonReader(reader);
+            jsReader.setLenient(true);
+            Long version = null;
+            jsReader.beginObject();
+            while (jsReader.hasNext()) {
+                String name = jsReader.nextName();
+                if (name.equals("v")) {
+                    version = jsReader.nextLong();
+                } else if (name.equals("t") && tasklists != null) {
+                    jsReader.beginObject();
+                    while (jsReader.hasNext()) {
+                        if (jsReader.nextName().equals(GTaskStringUtils.GTASK_JSON_LISTS)) {
+                            jsReader.beginArray();
+                            while (jsReader.hasNext()) {
+                                TaskList tasklist = new TaskList();
+                                tasklist.setContentByRemoteJSON(readObject(jsReader));
+                                tasklists.add(tasklist);
+                            }
+                            jsReader.endArray();
+                        } else {
+                            jsReader.skipValue();
+                        }
+                    }
+                    jsReader.endObject();
+                } else {
+                    jsReader.skipValue();
                 }
-                sb = sb.append(buff);
             }
+            if (version == null) {
+                throw new JSONException("no client version in the page");
+            }
+            return version;
         } finally {
-            input.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Consume the reader up to and including the text, false if it never comes
+     */
+    private static boolean skipPast(Reader reader, String text) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == text.charAt(matched)) {
+                matched++;
+                if (matched == text.length()) {
+                    return true;
+                }
+            } else {
+                // the text does not repeat its first char, a mismatch can only restart it
+                matched = c == text.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read one entity, small enough to hold, for the parsing of the nodes
+     */
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            js.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return js;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
         }
     }
 
@@ -329,15 +492,8 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
-            // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
+            HttpResponse response = executePost(js);
             String jsString = getResponseContent(response.getEntity());
             return new JSONObject(jsString);
 
@@ -360,6 +516,85 @@ public class GTaskClient {
         }
     }
 
+    private HttpResponse executePost(JSONObject js) throws IOException {
+        HttpPost httpPost = createHttpPost();
+        LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
+        list.add(new BasicNameValuePair("r", js.toString()));
+        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
+        httpPost.setEntity(entity);
+
+        // execute the post
+        return mHttpClient.execute(httpPost);
+    }
+
+    /**
+     * Post a request answered with tasks, the tasks are parsed one by one as the response
+     * arrives, into meta data if asked to
+     */
+    private ArrayList<Task> postTasksRequest(JSONObject js, boolean meta)
+            throws NetworkFailureException {
+        if (!mLoggedin) {
+            Log.e(TAG, "please login first");
+            throw new ActionFailureException("not logged in");
+        }
+
+        Reader reader = null;
+        try {
+            HttpResponse response = executePost(js);
+            reader = new BufferedReader(new InputStreamReader(
+                    getResponseStream(response.getEntity()), "UTF-8"));
+            JsonReader jsReader = new JsonReader(reader);
+            // as forgiving as the JSONObject parsing of the other responses
+            jsReader.setLenient(true);
+            ArrayList<Task> tasks = null;
+            jsReader.beginObject();
+            while (jsReader.hasNext()) {
+                if (jsReader.nextName().equals(GTaskStringUtils.GTASK_JSON_TASKS)) {
+                    tasks = new ArrayList<Task>();
+                    jsReader.beginArray();
+                    while (jsReader.hasNext()) {
+                        Task task = meta ? new MetaData() : new Task();
+                        task.setContentByRemoteJSON(readObject(jsReader));
+                        tasks.add(task);
+                    }
+                    jsReader.endArray();
+                } else {
+                    jsReader.skipValue();
+                }
+            }
+            jsReader.endObject();
+            if (tasks == null) {
+                throw new JSONException("no tasks in the response");
+            }
+            return tasks;
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("unable to parse the tasks of the response");
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new NetworkFailureException("postRequest failed");
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("unable to parse the tasks of the response");
+        } catch (IllegalStateException e) {
+            // the response is not shaped as expected
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("unable to parse the tasks of the response");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
+        }
+    }
+
     public void createTask(Task task) throws NetworkFailureException {
         commitUpdate();
         try {
@@ -378,6 +613,7 @@ public class GTaskClient {
             JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
                     GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
             task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            recordCommitted(actionList, jsResponse);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -404,6 +640,7 @@ public class GTaskClient {
             JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
                     GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
             tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            recordCommitted(actionList, jsResponse);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -423,8 +660,9 @@ public class GTaskClient {
                 // client_version
                 jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-                postRequest(jsPost);
+                recordCommitted(mUpdateArray, postRequest(jsPost));
                 mUpdateArray = null;
+                mCreatePriorSiblings.clear();
             } catch (JSONException e) {
                 Log.e(TAG, e.toString());
                 e.printStackTrace();
@@ -435,16 +673,135 @@ public class GTaskClient {
 
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
+            // set max to 10 items, a node still being created needs its id first
+            if ((mUpdateArray != null && mUpdateArray.length() > MAX_UPDATE_ITEMS)
+                    || isTempGid(node.getGid())) {
                 commitUpdate();
             }
 
             if (mUpdateArray == null)
                 mUpdateArray = new JSONArray();
             mUpdateArray.put(node.getUpdateAction(getActionId()));
+            mCreatesOnly = false;
+        }
+    }
+
+    /**
+     * Queue the creation of the node with the updates, instead of a post of its own. The node
+     * gets a temporary id, which the commit replaces with the id from its result.
+     * <p>
+     * A task whose prior sibling is queued in the same post is created behind the committed
+     * task that sibling is created behind, and placed before the sibling in the post. Created
+     * in that order, every task ends up right behind its own prior sibling, so no move is
+     * needed after the post.
+     */
+    public void addCreateNode(Node node) throws NetworkFailureException {
+        if (node == null) {
+            return;
+        }
+        if (mUpdateArray != null
+                && mUpdateArray.length() > (mCreatesOnly ? MAX_CREATE_ITEMS : MAX_UPDATE_ITEMS)) {
+            commitUpdate();
+        }
+
+        JSONObject action = node.getCreateAction(getActionId());
+        if (referencesTempParent(action)) {
+            // e.g. a task in a list created in the same batch, the list needs its id first
+            commitUpdate();
+            action = node.getCreateAction(getActionId());
+        }
+        if (mUpdateArray == null) {
+            mUpdateArray = new JSONArray();
+            mCreatesOnly = true;
+        }
+
+        String priorGid = action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null);
+        int index = mUpdateArray.length();
+        if (isTempGid(priorGid)) {
+            String priorActionId = priorGid.substring(TEMP_GID_PREFIX.length());
+            int priorIndex = indexOfAction(priorActionId);
+            priorGid = mCreatePriorSiblings.get(priorActionId);
+            if (priorIndex >= 0) {
+                index = priorIndex;
+            }
+            try {
+                if (priorGid == null) {
+                    action.remove(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID);
+                } else {
+                    action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, priorGid);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("add create node: handing jsonobject failed");
+            }
+        }
+
+        insertAction(index, action);
+        String actionId = action.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+        node.setGid(TEMP_GID_PREFIX + actionId);
+        mPendingCreates.put(actionId, node);
+        mCreatePriorSiblings.put(actionId, priorGid);
+    }
+
+    private int indexOfAction(String actionId) {
+        for (int i = 0; i < mUpdateArray.length(); i++) {
+            JSONObject action = mUpdateArray.optJSONObject(i);
+            if (action != null && actionId.equals(
+                    action.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insertAction(int index, JSONObject action) {
+        if (index >= mUpdateArray.length()) {
+            mUpdateArray.put(action);
+            return;
+        }
+        JSONArray actions = new JSONArray();
+        for (int i = 0; i < mUpdateArray.length(); i++) {
+            if (i == index) {
+                actions.put(action);
+            }
+            actions.put(mUpdateArray.opt(i));
+        }
+        mUpdateArray = actions;
+    }
+
+    /**
+     * Whether the gid is a temporary one, of a node whose creation is not committed yet
+     */
+    public static boolean isTempGid(String gid) {
+        return gid != null && gid.startsWith(TEMP_GID_PREFIX);
+    }
+
+    private static boolean referencesTempParent(JSONObject action) {
+        return isTempGid(action.optString(GTaskStringUtils.GTASK_JSON_PARENT_ID, null))
+                || isTempGid(action.optString(GTaskStringUtils.GTASK_JSON_LIST_ID, null));
+    }
+
+    private JSONObject getMoveAction(Task task, TaskList preParent, TaskList curParent)
+            throws JSONException {
+        JSONObject action = new JSONObject();
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+        action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
+        if (preParent == curParent && task.getPriorSibling() != null) {
+            // put prioring_sibing_id only if moving within the tasklist and
+            // it is not the first one
+            action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                    task.getPriorSibling().getGid());
+        }
+        action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
+        action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
+        if (preParent != curParent) {
+            // put the dest_list only if moving between tasklists
+            action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
         }
+        return action;
     }
 
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
@@ -453,31 +810,15 @@ public class GTaskClient {
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
-            JSONObject action = new JSONObject();
 
             // action_list
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
-                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
-            action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
-            if (preParent == curParent && task.getPriorSibling() != null) {
-                // put prioring_sibing_id only if moving within the tasklist and
-                // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
-            }
-            action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
-            action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
-            if (preParent != curParent) {
-                // put the dest_list only if moving between tasklists
-                action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
-            }
-            actionList.put(action);
+            actionList.put(getMoveAction(task, preParent, curParent));
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
+            recordCommitted(actionList, postRequest(jsPost));
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -500,7 +841,7 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
+            recordCommitted(actionList, postRequest(jsPost));
             mUpdateArray = null;
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -509,7 +850,10 @@ public class GTaskClient {
         }
     }
 
-    public JSONArray getTaskLists() throws NetworkFailureException {
+    /**
+     * The task lists, without their tasks
+     */
+    public ArrayList<TaskList> getTaskLists() throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
@@ -521,21 +865,17 @@ public class GTaskClient {
             response = mHttpClient.execute(httpGet);
 
             // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
+            ArrayList<TaskList> tasklists = new ArrayList<TaskList>();
+            readSetup(response.getEntity(), tasklists);
+            return tasklists;
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("gettasklists: httpget failed");
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task lists: handing jasonobject failed");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -544,11 +884,40 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task lists: handing jasonobject failed");
+        } catch (IllegalStateException e) {
+            // the page data is not shaped as expected
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task lists: handing jasonobject failed");
         }
     }
 
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    public ArrayList<Task> getTaskList(String listGid) throws NetworkFailureException {
         commitUpdate();
+        return fetchTaskList(listGid);
+    }
+
+    /**
+     * The meta data of the notes, kept as the tasks of the meta list
+     */
+    public ArrayList<MetaData> getMetaList(String listGid) throws NetworkFailureException {
+        commitUpdate();
+        ArrayList<MetaData> metas = new ArrayList<MetaData>();
+        for (Task task : postTasksRequest(getTaskListRequest(listGid), true)) {
+            metas.add((MetaData) task);
+        }
+        return metas;
+    }
+
+    /**
+     * Get the tasks of a list without committing the pending updates first, so that several
+     * threads can fetch lists at the same time. The caller commits the updates before.
+     */
+    public ArrayList<Task> fetchTaskList(String listGid) throws NetworkFailureException {
+        return postTasksRequest(getTaskListRequest(listGid), false);
+    }
+
+    private JSONObject getTaskListRequest(String listGid) {
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
@@ -566,8 +935,7 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            return jsPost;
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -581,5 +949,61 @@ public class GTaskClient {
 
     public void resetUpdateArray() {
         mUpdateArray = null;
+        mPendingCreates.clear();
+        mCreatePriorSiblings.clear();
+    }
+
+    /**
+     * The nodes written since {@link #resetCommittedStamps()}, by gid, with the last modified
+     * the server reported for them after the write or null where it did not report one
+     */
+    public Map<String, Long> getCommittedStamps() {
+        return Collections.unmodifiableMap(mCommittedStamps);
+    }
+
+    public void resetCommittedStamps() {
+        mCommittedStamps.clear();
+    }
+
+    /**
+     * Remember the nodes written by the actions of a post, the created ones under the new id
+     * of their result, which also replaces the temporary id of a queued create
+     */
+    private void recordCommitted(JSONArray actionList, JSONObject jsResponse)
+            throws JSONException {
+        HashMap<String, JSONObject> results = new HashMap<String, JSONObject>();
+        JSONArray jsResults = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+        if (jsResults != null) {
+            for (int i = 0; i < jsResults.length(); i++) {
+                JSONObject jsResult = jsResults.getJSONObject(i);
+                results.put(jsResult.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID), jsResult);
+            }
+        }
+
+        for (int i = 0; i < actionList.length(); i++) {
+            JSONObject action = actionList.getJSONObject(i);
+            JSONObject jsResult = results.get(
+                    action.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            String gid = action.optString(GTaskStringUtils.GTASK_JSON_ID, null);
+            if (jsResult != null && jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                gid = jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID);
+            }
+            Node created = mPendingCreates.remove(
+                    action.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            if (created != null) {
+                if (gid == null || isTempGid(gid)) {
+                    throw new ActionFailureException("create: no new id in the result");
+                }
+                created.setGid(gid);
+            }
+            if (gid == null) {
+                continue;
+            }
+            Long lastModified = null;
+            if (jsResult != null && jsResult.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                lastModified = jsResult.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED);
+            }
+            mCommittedStamps.put(gid, lastModified);
+        }
     }
 }
@@ -17,17 +17,24 @@
 package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderRegistry;
+import net.micode.notes.data.NoteDataReader;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.NotesMaintenance;
+import net.micode.notes.data.TrashPurger;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
@@ -42,10 +49,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GTaskManager {
@@ -87,6 +102,45 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    // note and data ids already taken locally, among the ids the remote notes bring along
+    private HashSet<Long> mUsedNoteIds;
+
+    private HashSet<Long> mUsedDataIds;
+
+    private static final int MAX_GIDS_PER_QUERY = 500;
+
+    public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+
+    // task lists fetched at the same time, set from any thread, read when a sync starts fetching
+    private volatile int mFetchConcurrency;
+
+    // the fetching threads of the current sync, created when the first lists are loaded
+    private ExecutorService mFetchExecutor;
+
+    private SyncWatermarks mWatermarks;
+
+    // only the lists which changed and the local rows which changed or are in them are synced
+    private boolean mDeltaSync;
+
+    // last modified of every remote list, as returned by the list of task lists, except the
+    // lists this sync wrote to
+    private HashMap<String, Long> mListStamps;
+
+    // the lists whose tasks have been downloaded
+    private HashSet<String> mLoadedListGids;
+
+    private boolean mMetaLoaded;
+
+    // whether the sync changed anything, locally or remotely, whose sync id needs a refresh
+    private boolean mSyncChanged;
+
+    // nodes of local notes and folders queued for creation remotely, the local notes get the
+    // gids once the creates are committed
+    private LinkedHashMap<Node, SqlNote> mCreatedNodes;
+
+    // lists tasks were moved out of, they changed with the move as well
+    private HashSet<String> mMovedFromListGids;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
@@ -97,6 +151,13 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mUsedNoteIds = new HashSet<Long>();
+        mUsedDataIds = new HashSet<Long>();
+        mListStamps = new HashMap<String, Long>();
+        mLoadedListGids = new HashSet<String>();
+        mCreatedNodes = new LinkedHashMap<Node, SqlNote>();
+        mMovedFromListGids = new HashSet<String>();
+        mFetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -111,6 +172,17 @@ public class GTaskManager {
         mActivity = activity;
     }
 
+    /**
+     * Number of task lists fetched at the same time, between 1 and
+     * {@link GTaskClient#MAX_CONCURRENT_REQUESTS}, {@link #DEFAULT_FETCH_CONCURRENCY} unless
+     * set. Meant for tuning the sync to the connection, e.g. lower on a metered network. A
+     * sync already fetching keeps the number it started with, the next sync uses the new one.
+     */
+    public void setFetchConcurrency(int concurrency) {
+        mFetchConcurrency = Math.max(1,
+                Math.min(concurrency, GTaskClient.MAX_CONCURRENT_REQUESTS));
+    }
+
     public int sync(Context context, GTaskASyncTask asyncTask) {
         if (mSyncing) {
             Log.d(TAG, "Sync is in progress");
@@ -126,16 +198,27 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mListStamps.clear();
+        mLoadedListGids.clear();
+        mCreatedNodes.clear();
+        mMovedFromListGids.clear();
+        mSyncChanged = false;
 
         try {
+            // sync must not take notes marked as deleted but not purged yet for missing ones
+            TrashPurger.getInstance(mContext).purgeNow();
+
             GTaskClient client = GTaskClient.getInstance();
             client.resetUpdateArray();
+            client.resetCommittedStamps();
 
             // login google task
             if (!mCancelled) {
                 if (!client.login(mActivity)) {
                     throw new NetworkFailureException("login google task failed");
                 }
+                mWatermarks = new SyncWatermarks(mContext, getSyncAccount());
+                mDeltaSync = mWatermarks.canSyncDelta();
             }
 
             // get the task list from google
@@ -145,6 +228,14 @@ public class GTaskManager {
             // do content sync work
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
             syncContent();
+            if (!mCancelled) {
+                mWatermarks.save(mListStamps, !mDeltaSync);
+            }
+
+            // write the sync changes back from the wal file
+            NotesDatabaseHelper.getInstance(mContext).checkpoint();
+            // refresh the planner statistics after the sync churn
+            NotesMaintenance.getInstance(mContext).schedule();
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
             return STATE_NETWORK_ERROR;
@@ -162,6 +253,14 @@ public class GTaskManager {
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mListStamps.clear();
+            mLoadedListGids.clear();
+            mCreatedNodes.clear();
+            mMovedFromListGids.clear();
+            if (mFetchExecutor != null) {
+                mFetchExecutor.shutdownNow();
+                mFetchExecutor = null;
+            }
             mSyncing = false;
         }
 
@@ -171,80 +270,323 @@ public class GTaskManager {
     private void initGTaskList() throws NetworkFailureException {
         if (mCancelled)
             return;
-        GTaskClient client = GTaskClient.getInstance();
+        fetchTaskLists();
+        if (mDeltaSync) {
+            loadChangedTaskLists();
+        } else {
+            loadTaskLists(new ArrayList<String>(mGTaskListHashMap.keySet()));
+        }
+    }
+
+    /**
+     * Get the task lists without their tasks, one request for all of them
+     */
+    private void fetchTaskLists() throws NetworkFailureException {
+        ArrayList<TaskList> tasklists = GTaskClient.getInstance().getTaskLists();
+
+        mMetaList = null;
+        mMetaLoaded = false;
+        mListStamps.clear();
+        for (TaskList tasklist : tasklists) {
+            String gid = tasklist.getGid();
+            String name = tasklist.getName();
+            if (gid == null || name == null) {
+                throw new ActionFailureException("fetchTaskLists: task list without id or name");
+            }
+
+            if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                mMetaList = tasklist;
+            } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                mGTaskListHashMap.put(gid, tasklist);
+                mGTaskHashMap.put(gid, tasklist);
+                mListStamps.put(gid, tasklist.getLastModified());
+            }
+        }
+
+        // create meta list if not existed
+        if (mMetaList == null) {
+            mMetaList = new TaskList();
+            mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META);
+            GTaskClient.getInstance().createTaskList(mMetaList);
+            mMetaLoaded = true;
+        }
+    }
+
+    /**
+     * Load the meta data, the tasks need it and so does any change of a note
+     */
+    private void ensureMetaLoaded() throws NetworkFailureException {
+        if (mMetaLoaded) {
+            return;
+        }
+        mMetaLoaded = true;
+
+        for (MetaData metaData : GTaskClient.getInstance().getMetaList(mMetaList.getGid())) {
+            if (metaData.isWorthSaving()) {
+                mMetaList.addChildTask(metaData);
+                if (metaData.getGid() != null) {
+                    mMetaHashMap.put(metaData.getRelatedGid(), metaData);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the tasks of the lists, up to {@link #mFetchConcurrency} lists at a time. The tasks
+     * are parsed on the fetching threads and added in the order of the lists. The threads are
+     * kept for the rest of the sync, the delta sync loads lists in several rounds.
+     */
+    private void loadTaskLists(Collection<String> listGids) throws NetworkFailureException {
+        ArrayList<TaskList> tasklists = new ArrayList<TaskList>();
+        for (String listGid : listGids) {
+            TaskList tasklist = mGTaskListHashMap.get(listGid);
+            if (tasklist != null && mLoadedListGids.add(listGid)) {
+                tasklists.add(tasklist);
+            }
+        }
+        if (tasklists.isEmpty() || mCancelled) {
+            return;
+        }
+        ensureMetaLoaded();
+        // the fetching threads leave the update array alone
+        GTaskClient.getInstance().commitUpdate();
+
+        if (mFetchExecutor == null) {
+            mFetchExecutor = Executors.newFixedThreadPool(mFetchConcurrency);
+        }
+        ArrayList<Future<ArrayList<Task>>> futures = new ArrayList<Future<ArrayList<Task>>>();
         try {
-            JSONArray jsTaskLists = client.getTaskLists();
-
-            // init meta list first
-            mMetaList = null;
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name
-                        .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
+            for (final TaskList tasklist : tasklists) {
+                futures.add(mFetchExecutor.submit(new Callable<ArrayList<Task>>() {
+                    public ArrayList<Task> call() throws Exception {
+                        return mCancelled ? new ArrayList<Task>() : fetchTasks(tasklist.getGid());
                     }
+                }));
+            }
+
+            for (int i = 0; i < tasklists.size(); i++) {
+                TaskList tasklist = tasklists.get(i);
+                for (Task task : getFetchResult(futures.get(i))) {
+                    tasklist.addChildTask(task);
+                    mGTaskHashMap.put(task.getGid(), task);
                 }
             }
+        } finally {
+            // the lists not fetched yet when one failed are not needed any more
+            for (Future<ArrayList<Task>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
-            // create meta list if not existed
-            if (mMetaList == null) {
-                mMetaList = new TaskList();
-                mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                        + GTaskStringUtils.FOLDER_META);
-                GTaskClient.getInstance().createTaskList(mMetaList);
-            }
-
-            // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
-                        }
+    /**
+     * The tasks worth saving of the list, with their meta info, runs on a fetching thread
+     */
+    private ArrayList<Task> fetchTasks(String listGid) throws NetworkFailureException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (Task task : GTaskClient.getInstance().fetchTaskList(listGid)) {
+            if (task.isWorthSaving()) {
+                task.setMetaInfo(mMetaHashMap.get(task.getGid()));
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    private ArrayList<Task> getFetchResult(Future<ArrayList<Task>> future)
+            throws NetworkFailureException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("load task lists: interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, cause.toString());
+            throw new ActionFailureException("load task lists: " + cause.toString());
+        }
+    }
+
+    /**
+     * Load the lists changed since the last sync and the lists of the folders with local
+     * changes. Falls back to loading every list if a changed note or a folder can not be
+     * matched with what was loaded.
+     */
+    private void loadChangedTaskLists() throws NetworkFailureException {
+        HashSet<String> listGids = new HashSet<String>();
+        for (Map.Entry<String, Long> entry : mListStamps.entrySet()) {
+            if (mWatermarks.isListChanged(entry.getKey(), entry.getValue())) {
+                listGids.add(entry.getKey());
+            }
+        }
+
+        // notes changed locally or moved to the trash, the trash goes to the remote on every
+        // sync, they belong to the list of their folder
+        HashSet<String> changedGids = new HashSet<String>();
+        boolean localChanges = false;
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID, NoteColumns.PARENT_ID, NoteColumns.ORIGIN_PARENT_ID
+            }, "(type=? AND (parent_id=? OR local_modified=1))", new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+            }, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    localChanges = true;
+                    String gid = c.getString(0);
+                    if (gid != null && gid.trim().length() > 0) {
+                        changedGids.add(gid);
+                    }
+                    long folderId = c.getLong(1) == Notes.ID_TRASH_FOLER ? c.getLong(2)
+                            : c.getLong(1);
+                    String folderGid = getFolderGid(folderId);
+                    if (folderGid != null) {
+                        listGids.add(folderGid);
                     }
                 }
+            } else {
+                Log.w(TAG, "failed to query locally changed notes");
             }
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("initGTaskList: handing JSONObject failed");
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+
+        if (localChanges) {
+            ensureMetaLoaded();
+        }
+        loadTaskLists(listGids);
+
+        if (!isDeltaComplete(changedGids)) {
+            Log.d(TAG, "local changes not found in the changed lists, sync all lists");
+            mDeltaSync = false;
+            loadTaskLists(new ArrayList<String>(mGTaskListHashMap.keySet()));
+            return;
+        }
+
+        loadListsOfLocalTasks();
+    }
+
+    /**
+     * Whether every changed note and every local folder known remotely was matched with a
+     * remote node. A folder whose list is gone takes its notes along, which only a full sync
+     * visits.
+     */
+    private boolean isDeltaComplete(Collection<String> changedGids) {
+        for (String gid : changedGids) {
+            if (!mGTaskHashMap.containsKey(gid)) {
+                return false;
+            }
+        }
+        for (FolderRegistry.Folder folder : FolderRegistry.getInstance(mContext)
+                .getUserFolders()) {
+            if (folder.gtaskId != null && folder.gtaskId.trim().length() > 0
+                    && !mGTaskListHashMap.containsKey(folder.gtaskId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The tasks of a loaded list may be kept locally in the folder of another list, e.g. after
+     * a remote move. Load those lists as well, so that the local notes in the folders of the
+     * loaded lists cover all loaded tasks.
+     */
+    private void loadListsOfLocalTasks() throws NetworkFailureException {
+        HashSet<String> checkedListGids = new HashSet<String>();
+        while (!mCancelled) {
+            ArrayList<String> taskGids = new ArrayList<String>();
+            for (String listGid : mLoadedListGids) {
+                if (checkedListGids.add(listGid)) {
+                    for (Task task : mGTaskListHashMap.get(listGid).getChildTaskList()) {
+                        taskGids.add(task.getGid());
+                    }
+                }
+            }
+
+            HashSet<String> listGids = new HashSet<String>();
+            for (Long folderId : getLocalParentIds(taskGids)) {
+                String folderGid = getFolderGid(folderId);
+                if (folderGid != null && !mLoadedListGids.contains(folderGid)) {
+                    listGids.add(folderGid);
+                }
+            }
+            if (listGids.isEmpty()) {
+                return;
+            }
+            loadTaskLists(listGids);
+        }
+    }
+
+    /**
+     * Folders of the local notes outside of the trash with the gids, a query per few hundred
+     */
+    private HashSet<Long> getLocalParentIds(ArrayList<String> gids) {
+        HashSet<Long> parentIds = new HashSet<Long>();
+        for (int start = 0; start < gids.size(); start += MAX_GIDS_PER_QUERY) {
+            int end = Math.min(start + MAX_GIDS_PER_QUERY, gids.size());
+            StringBuilder selection = new StringBuilder(
+                    "(type=? AND parent_id<>? AND gtask_id IN (");
+            String[] args = new String[end - start + 2];
+            args[0] = String.valueOf(Notes.TYPE_NOTE);
+            args[1] = String.valueOf(Notes.ID_TRASH_FOLER);
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                args[i - start + 2] = gids.get(i);
+            }
+            selection.append("))");
+
+            Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.PARENT_ID
+            }, selection.toString(), args, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query local notes of the loaded tasks");
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    parentIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return parentIds;
+    }
+
+    private String getFolderGid(long folderId) {
+        FolderRegistry.Folder folder = FolderRegistry.getInstance(mContext).getFolder(folderId);
+        if (folder == null || folder.gtaskId == null || folder.gtaskId.trim().length() == 0) {
+            return null;
         }
+        return folder.gtaskId;
+    }
+
+    /**
+     * Selection of the notes in the folders of the loaded lists, or null if there are none
+     */
+    private String getLoadedFoldersSelection() {
+        StringBuilder ids = new StringBuilder();
+        for (String listGid : mLoadedListGids) {
+            Long folderId = mGidToNid.get(listGid);
+            if (folderId != null) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(folderId);
+            }
+        }
+        return ids.length() == 0 ? null : "parent_id IN (" + ids + ")";
     }
 
     private void syncContent() throws NetworkFailureException {
@@ -289,14 +631,22 @@ public class GTaskManager {
         // sync folder first
         syncFolder();
 
-        // for note existing in database
+        // for note existing in database, the notes come with their data rows
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+            String selection = "(type=? AND parent_id<>?)";
+            if (mDeltaSync) {
+                // the notes of the other folders did not change on either side
+                String loadedFolders = getLoadedFoldersSelection();
+                selection += " AND (local_modified=1"
+                        + (loadedFolders == null ? "" : " OR " + loadedFolders) + ")";
+            }
+            c = mContentResolver.query(Notes.CONTENT_NOTE_DATA_URI, SqlNote.PROJECTION_NOTE_DATA,
+                    selection, new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
-                while (c.moveToNext()) {
+                NoteDataReader reader = new NoteDataReader(c);
+                while (reader.moveToNextNote()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
@@ -326,13 +676,15 @@ public class GTaskManager {
             }
         }
 
-        // go through remaining items
+        // go through remaining items, the ids they bring along are checked in one go
+        loadUsedIds(mGTaskHashMap.values());
         Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
         while (iter.hasNext()) {
             Map.Entry<String, Node> entry = iter.next();
             node = entry.getValue();
             doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
         }
+        commitCreatedNodes();
 
         // mCancelled can be set by another thread, so we neet to check one by
         // one
@@ -361,83 +713,29 @@ public class GTaskManager {
             return;
         }
 
-        // for root folder
-        try {
-            c = mContentResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                    Notes.ID_ROOT_FOLDER), SqlNote.PROJECTION_NOTE, null, null, null);
-            if (c != null) {
-                c.moveToNext();
-                gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                node = mGTaskHashMap.get(gid);
-                if (node != null) {
-                    mGTaskHashMap.remove(gid);
-                    mGidToNid.put(gid, (long) Notes.ID_ROOT_FOLDER);
-                    mNidToGid.put((long) Notes.ID_ROOT_FOLDER, gid);
-                    // for system folder, only update remote name if necessary
-                    if (!node.getName().equals(
-                            GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT))
-                        doContentSync(Node.SYNC_ACTION_UPDATE_REMOTE, node, c);
-                } else {
-                    doContentSync(Node.SYNC_ACTION_ADD_REMOTE, node, c);
-                }
-            } else {
-                Log.w(TAG, "failed to query root folder");
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-        }
-
-        // for call-note folder
-        try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE, "(_id=?)",
-                    new String[] {
-                        String.valueOf(Notes.ID_CALL_RECORD_FOLDER)
-                    }, null);
-            if (c != null) {
-                if (c.moveToNext()) {
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, (long) Notes.ID_CALL_RECORD_FOLDER);
-                        mNidToGid.put((long) Notes.ID_CALL_RECORD_FOLDER, gid);
-                        // for system folder, only update remote name if
-                        // necessary
-                        if (!node.getName().equals(
-                                GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                        + GTaskStringUtils.FOLDER_CALL_NOTE))
-                            doContentSync(Node.SYNC_ACTION_UPDATE_REMOTE, node, c);
-                    } else {
-                        doContentSync(Node.SYNC_ACTION_ADD_REMOTE, node, c);
-                    }
-                }
-            } else {
-                Log.w(TAG, "failed to query call note folder");
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-        }
-
-        // for local existing folders
+        // for root folder, call-note folder and local existing folders, all in one query,
+        // the system folders come first
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    "(_id=? OR _id=? OR (type=? AND parent_id<>?))", new String[] {
+                            String.valueOf(Notes.ID_ROOT_FOLDER),
+                            String.valueOf(Notes.ID_CALL_RECORD_FOLDER),
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    }, NoteColumns.TYPE + " DESC, " + NoteColumns.ID + " DESC");
             if (c != null) {
                 while (c.moveToNext()) {
+                    long id = c.getLong(SqlNote.ID_COLUMN);
+                    if (id == Notes.ID_ROOT_FOLDER || id == Notes.ID_CALL_RECORD_FOLDER) {
+                        syncSystemFolder(id, c);
+                        continue;
+                    }
+
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
+                        mGidToNid.put(gid, id);
+                        mNidToGid.put(id, gid);
                         syncType = node.getSyncAction(c);
                     } else {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
@@ -474,12 +772,35 @@ public class GTaskManager {
 
         if (!mCancelled)
             GTaskClient.getInstance().commitUpdate();
+        // the notes need the gids of the new folders
+        commitCreatedNodes();
+    }
+
+    private void syncSystemFolder(long folderId, Cursor c) throws NetworkFailureException {
+        String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+        Node node = mGTaskHashMap.get(gid);
+        if (node != null) {
+            mGTaskHashMap.remove(gid);
+            mGidToNid.put(gid, folderId);
+            mNidToGid.put(folderId, gid);
+            // for system folder, only update remote name if necessary
+            String name = GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + (folderId == Notes.ID_ROOT_FOLDER ? GTaskStringUtils.FOLDER_DEFAULT
+                            : GTaskStringUtils.FOLDER_CALL_NOTE);
+            if (!node.getName().equals(name))
+                doContentSync(Node.SYNC_ACTION_UPDATE_REMOTE, node, c);
+        } else {
+            doContentSync(Node.SYNC_ACTION_ADD_REMOTE, node, c);
+        }
     }
 
     private void doContentSync(int syncType, Node node, Cursor c) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
+        if (syncType != Node.SYNC_ACTION_NONE) {
+            mSyncChanged = true;
+        }
 
         MetaData meta;
         switch (syncType) {
@@ -522,6 +843,45 @@ public class GTaskManager {
         }
     }
 
+    /**
+     * Find out which of the note and data ids carried by the meta data of the nodes are taken
+     * locally, a few queries for all of them instead of two per note
+     */
+    private void loadUsedIds(Collection<Node> nodes) {
+        HashSet<Long> noteIds = new HashSet<Long>();
+        HashSet<Long> dataIds = new HashSet<Long>();
+        for (Node node : nodes) {
+            if (!(node instanceof Task)) {
+                continue;
+            }
+            JSONObject js = node.getLocalJSONFromContent();
+            if (js == null) {
+                continue;
+            }
+            try {
+                if (js.has(GTaskStringUtils.META_HEAD_NOTE)) {
+                    JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                    if (note.has(NoteColumns.ID)) {
+                        noteIds.add(note.getLong(NoteColumns.ID));
+                    }
+                }
+                if (js.has(GTaskStringUtils.META_HEAD_DATA)) {
+                    JSONArray dataArray = js.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+                    for (int i = 0; i < dataArray.length(); i++) {
+                        JSONObject data = dataArray.getJSONObject(i);
+                        if (data.has(DataColumns.ID)) {
+                            dataIds.add(data.getLong(DataColumns.ID));
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+        mUsedNoteIds = DataUtils.getExistingNoteIds(mContentResolver, noteIds);
+        mUsedDataIds = DataUtils.getExistingDataIds(mContentResolver, dataIds);
+    }
+
     private void addLocalNode(Node node) throws NetworkFailureException {
         if (mCancelled) {
             return;
@@ -548,7 +908,7 @@ public class GTaskManager {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (mUsedNoteIds.contains(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
                         }
@@ -561,7 +921,7 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (mUsedDataIds.contains(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
@@ -587,6 +947,8 @@ public class GTaskManager {
         // create the local node
         sqlNote.setGtaskId(node.getGid());
         sqlNote.commit(false);
+        mUsedNoteIds.add(sqlNote.getId());
+        mUsedDataIds.addAll(sqlNote.getDataIds());
 
         // update gid-nid mapping
         mGidToNid.put(node.getGid(), sqlNote.getId());
@@ -639,11 +1001,10 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // the meta is added once the task has its gid
+            GTaskClient.getInstance().addCreateNode(task);
+            mCreatedNodes.put(task, sqlNote);
+            return;
         } else {
             TaskList tasklist = null;
 
@@ -675,12 +1036,45 @@ public class GTaskManager {
             if (tasklist == null) {
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
-                GTaskClient.getInstance().createTaskList(tasklist);
-                mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                GTaskClient.getInstance().addCreateNode(tasklist);
+                mCreatedNodes.put(tasklist, sqlNote);
+                return;
             }
             n = (Node) tasklist;
         }
 
+        updateLocalGid(n, sqlNote);
+    }
+
+    /**
+     * Commit the queued creates, then give the local notes and folders the gids the server
+     * assigned and add the meta of the new notes
+     */
+    private void commitCreatedNodes() throws NetworkFailureException {
+        if (mCreatedNodes.isEmpty()) {
+            return;
+        }
+
+        // even if cancelled, a committed node without its gid locally would be created twice
+        GTaskClient.getInstance().commitUpdate();
+        for (Map.Entry<Node, SqlNote> entry : mCreatedNodes.entrySet()) {
+            Node n = entry.getKey();
+            SqlNote sqlNote = entry.getValue();
+            if (n instanceof TaskList) {
+                // a new list has no tasks but the ones added by this sync
+                mGTaskListHashMap.put(n.getGid(), (TaskList) n);
+                mLoadedListGids.add(n.getGid());
+            } else {
+                // add meta
+                updateRemoteMeta(n.getGid(), sqlNote);
+            }
+            updateLocalGid(n, sqlNote);
+        }
+        mCreatedNodes.clear();
+        GTaskClient.getInstance().commitUpdate();
+    }
+
+    private void updateLocalGid(Node n, SqlNote sqlNote) {
         // update local note
         sqlNote.setGtaskId(n.getGid());
         sqlNote.commit(false);
@@ -722,6 +1116,7 @@ public class GTaskManager {
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
                 GTaskClient.getInstance().moveTask(task, preParentList, curParentList);
+                mMovedFromListGids.add(preParentList.getGid());
             }
         }
 
@@ -741,7 +1136,7 @@ public class GTaskManager {
                 metaData.setMeta(gid, sqlNote.getContent());
                 mMetaList.addChildTask(metaData);
                 mMetaHashMap.put(gid, metaData);
-                GTaskClient.getInstance().createTask(metaData);
+                GTaskClient.getInstance().addCreateNode(metaData);
             }
         }
     }
@@ -751,33 +1146,56 @@ public class GTaskManager {
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        if (mDeltaSync && !mSyncChanged) {
+            // nothing was written on either side, the sync ids are still current
+            return;
+        }
+
+        // the nodes as loaded, and created or moved during the sync
+        HashMap<String, Node> nodes = new HashMap<String, Node>();
+        for (TaskList tasklist : mGTaskListHashMap.values()) {
+            nodes.put(tasklist.getGid(), tasklist);
+            for (Task task : tasklist.getChildTaskList()) {
+                nodes.put(task.getGid(), task);
+            }
+        }
+
+        HashMap<String, Long> syncIds = getSyncIds(nodes);
+        if (mCancelled) {
+            return;
+        }
 
+        ArrayList<ContentProviderOperation> operationList =
+                new ArrayList<ContentProviderOperation>();
         Cursor c = null;
         try {
+            String selection = "(type<>? AND parent_id<>?)";
+            if (mDeltaSync) {
+                // the notes of the other folders kept their sync ids
+                String loadedFolders = getLoadedFoldersSelection();
+                selection += " AND (type=" + Notes.TYPE_FOLDER
+                        + (loadedFolders == null ? "" : " OR " + loadedFolders) + ")";
+            }
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
+                    selection, new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
                 while (c.moveToNext()) {
                     String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
-                    } else {
+                    Long syncId = syncIds.get(gid);
+                    if (syncId == null) {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
                                 "some local items don't have gid after sync");
                     }
+                    if (c.getLong(SqlNote.SYNC_ID_COLUMN) != syncId) {
+                        operationList.add(ContentProviderOperation.newUpdate(
+                                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
+                                        c.getLong(SqlNote.ID_COLUMN)))
+                                .withValue(NoteColumns.SYNC_ID, syncId)
+                                .build());
+                    }
                 }
             } else {
                 Log.w(TAG, "failed to query local note to refresh sync id");
@@ -788,6 +1206,80 @@ public class GTaskManager {
                 c = null;
             }
         }
+
+        // all sync ids in one transaction
+        if (!operationList.isEmpty()) {
+            try {
+                mContentResolver.applyBatch(Notes.AUTHORITY, operationList);
+            } catch (RemoteException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("failed to refresh local sync id");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("failed to refresh local sync id");
+            }
+        }
+    }
+
+    /**
+     * The last modified of the nodes after the sync, by gid. A node not written keeps the one
+     * it was loaded with, a written one takes the one reported with the write. The tasks whose
+     * write reported none are read back with their lists.
+     * <p>
+     * The lists written to lose their watermark, so the next sync loads them again. Their
+     * stamp after the write would also cover what others changed in them between loading
+     * and writing, and that change would never be loaded.
+     */
+    private HashMap<String, Long> getSyncIds(HashMap<String, Node> nodes)
+            throws NetworkFailureException {
+        GTaskClient client = GTaskClient.getInstance();
+        Map<String, Long> committed = client.getCommittedStamps();
+
+        HashMap<String, Long> syncIds = new HashMap<String, Long>();
+        // a move changes the list it leaves as well as the one it goes to
+        HashSet<String> writtenListGids = new HashSet<String>(mMovedFromListGids);
+        HashSet<String> unknownGids = new HashSet<String>();
+        HashSet<String> reloadListGids = new HashSet<String>();
+        for (Node node : nodes.values()) {
+            String gid = node.getGid();
+            String listGid = node instanceof Task ? ((Task) node).getParent().getGid() : gid;
+            if (node.getDeleted()) {
+                // a deleted node needs no sync id, but its list changed with the delete
+                if (committed.containsKey(gid) && node instanceof Task) {
+                    writtenListGids.add(listGid);
+                }
+                continue;
+            }
+            if (!committed.containsKey(gid)) {
+                syncIds.put(gid, node.getLastModified());
+                continue;
+            }
+            writtenListGids.add(listGid);
+            if (committed.get(gid) != null) {
+                syncIds.put(gid, committed.get(gid));
+            } else if (node instanceof Task) {
+                unknownGids.add(gid);
+                reloadListGids.add(listGid);
+            }
+        }
+
+        if (!unknownGids.isEmpty()) {
+            for (String listGid : reloadListGids) {
+                if (mCancelled) {
+                    return syncIds;
+                }
+                for (Task task : client.getTaskList(listGid)) {
+                    if (unknownGids.contains(task.getGid()) && task.getLastModified() != 0) {
+                        syncIds.put(task.getGid(), task.getLastModified());
+                    }
+                }
+            }
+        }
+
+        for (String listGid : writtenListGids) {
+            mListStamps.remove(listGid);
+        }
+        return syncIds;
     }
 
     public String getSyncAccount() {
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import java.util.Map;
+
+/**
+ * The last modified stamps of the remote task lists as of the last successful sync, which let
+ * the next sync skip the lists nothing changed in. They belong to one account. A different
+ * account, a reset of the last sync time or a day since the last full sync make the next sync
+ * a full one again.
+ */
+public class SyncWatermarks {
+    private static final String PREFERENCE_NAME = "gtask_sync_watermarks";
+
+    private static final String KEY_ACCOUNT = "account";
+
+    private static final String KEY_LAST_FULL_SYNC = "last_full_sync";
+
+    private static final String KEY_LIST_PREFIX = "list_";
+
+    private static final long FULL_SYNC_INTERVAL = AlarmManager.INTERVAL_DAY;
+
+    private final Context mContext;
+
+    private final SharedPreferences mPreferences;
+
+    private final String mAccount;
+
+    public SyncWatermarks(Context context, String account) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        mAccount = account;
+    }
+
+    /**
+     * Whether the stamps can be trusted for an incremental sync
+     */
+    public boolean canSyncDelta() {
+        if (NotesPreferenceActivity.getLastSyncTime(mContext) == 0
+                || !mAccount.equals(mPreferences.getString(KEY_ACCOUNT, null))) {
+            return false;
+        }
+        long sinceFullSync = System.currentTimeMillis()
+                - mPreferences.getLong(KEY_LAST_FULL_SYNC, 0);
+        return sinceFullSync >= 0 && sinceFullSync < FULL_SYNC_INTERVAL;
+    }
+
+    /**
+     * Whether the list changed since the last sync, a list never seen before did
+     */
+    public boolean isListChanged(String gid, long lastModified) {
+        String key = KEY_LIST_PREFIX + gid;
+        return !mPreferences.contains(key) || mPreferences.getLong(key, 0) != lastModified;
+    }
+
+    /**
+     * Replace the stamps with the ones of a successful sync
+     */
+    public void save(Map<String, Long> listStamps, boolean fullSync) {
+        long lastFullSync = fullSync ? System.currentTimeMillis()
+                : mPreferences.getLong(KEY_LAST_FULL_SYNC, 0);
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.clear();
+        editor.putString(KEY_ACCOUNT, mAccount);
+        editor.putLong(KEY_LAST_FULL_SYNC, lastFullSync);
+        for (Map.Entry<String, Long> entry : listStamps.entrySet()) {
+            editor.putLong(KEY_LIST_PREFIX + entry.getKey(), entry.getValue());
+        }
+        editor.commit();
+    }
+}
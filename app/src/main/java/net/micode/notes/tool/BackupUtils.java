@@ -24,10 +24,11 @@ import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.NoteDataReader;
 import net.micode.notes.data.Notes;
-import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteDataColumns;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -99,22 +100,28 @@ public class BackupUtils {
 
         private static final int NOTE_COLUMN_SNIPPET = 2;
 
-        private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,
-                DataColumns.MIME_TYPE,
-                DataColumns.DATA1,
-                DataColumns.DATA2,
-                DataColumns.DATA3,
-                DataColumns.DATA4,
+        // Notes together with their data, one row per data
+        private static final String[] NOTE_DATA_PROJECTION = {
+                NoteColumns.ID,
+                NoteColumns.MODIFIED_DATE,
+                NoteDataColumns.DATA_ID,
+                NoteDataColumns.CONTENT,
+                NoteDataColumns.MIME_TYPE,
+                NoteDataColumns.DATA1,
+                NoteDataColumns.DATA2,
+                NoteDataColumns.DATA3,
+                NoteDataColumns.DATA4,
         };
 
-        private static final int DATA_COLUMN_CONTENT = 0;
+        private static final int NOTE_DATA_COLUMN_MODIFIED_DATE = 1;
 
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
+        private static final int DATA_COLUMN_CONTENT = 3;
 
-        private static final int DATA_COLUMN_CALL_DATE = 2;
+        private static final int DATA_COLUMN_MIME_TYPE = 4;
 
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        private static final int DATA_COLUMN_CALL_DATE = 5;
+
+        private static final int DATA_COLUMN_PHONE_NUMBER = 7;
 
         private final String [] TEXT_FORMAT;
         private static final int FORMAT_FOLDER_NAME          = 0;
@@ -140,70 +147,66 @@ public class BackupUtils {
          * Export the folder identified by folder id to text
          */
         private void exportFolderToText(String folderId, PrintStream ps) {
-            // Query notes belong to this folder
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] {
-                        folderId
-                    }, null);
+            exportNotesToText(NoteColumns.PARENT_ID + "=?", new String[] {
+                folderId
+            }, ps);
+        }
+
+        /**
+         * Export the notes matching the selection, together with their data in one query
+         */
+        private void exportNotesToText(String selection, String[] selectionArgs,
+                PrintStream ps) {
+            Cursor notesCursor = mContext.getContentResolver().query(
+                    Notes.CONTENT_NOTE_DATA_URI, NOTE_DATA_PROJECTION, selection, selectionArgs,
+                    null);
 
             if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // Print note's last modified date
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
+                NoteDataReader reader = new NoteDataReader(notesCursor);
+                while (reader.moveToNextNote()) {
+                    // Print note's last modified date
+                    ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
+                            mContext.getString(R.string.format_datetime_mdhm),
+                            notesCursor.getLong(NOTE_DATA_COLUMN_MODIFIED_DATE))));
+                    exportNoteToText(reader, ps);
                 }
                 notesCursor.close();
             }
         }
 
         /**
-         * Export note identified by id to a print stream
+         * Export the data rows of the reader's current note to a print stream
          */
-        private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
-                        noteId
-                    }, null);
-
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // Print phone number
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        phoneNumber));
-                            }
-                            // Print call date
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
-                                    .format(mContext.getString(R.string.format_datetime_mdhm),
-                                            callDate)));
-                            // Print call attachment location
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
+        private void exportNoteToText(NoteDataReader reader, PrintStream ps) {
+            Cursor dataCursor = reader.getCursor();
+            while (reader.moveToNextData()) {
+                String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
+                if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                    // Print phone number
+                    String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
+                    long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
+                    String location = dataCursor.getString(DATA_COLUMN_CONTENT);
+
+                    if (!TextUtils.isEmpty(phoneNumber)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                phoneNumber));
+                    }
+                    // Print call date
+                    ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
+                            .format(mContext.getString(R.string.format_datetime_mdhm),
+                                    callDate)));
+                    // Print call attachment location
+                    if (!TextUtils.isEmpty(location)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                location));
+                    }
+                } else if (DataConstants.NOTE.equals(mimeType)) {
+                    String content = dataCursor.getString(DATA_COLUMN_CONTENT);
+                    if (!TextUtils.isEmpty(content)) {
+                        ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
+                                content));
+                    }
                 }
-                dataCursor.close();
             }
             // print a line separator between note
             try {
@@ -258,25 +261,8 @@ public class BackupUtils {
             }
 
             // Export notes in root's folder
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                            + "=0", null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
-                }
-                noteCursor.close();
-            }
+            exportNotesToText(NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+                    + NoteColumns.PARENT_ID + "=0", null, ps);
             ps.close();
 
             return STATE_SUCCESS;
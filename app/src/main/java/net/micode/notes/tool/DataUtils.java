@@ -23,20 +23,31 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.FolderStatsColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 
 
 public class DataUtils {
     public static final String TAG = "DataUtils";
+
+    /**
+     * Ids bound to one "_id IN (...)" statement, well below the 999 host parameters older
+     * sqlite versions allow, leaving room for the parameters of the values
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
     public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");
@@ -47,15 +58,18 @@ public class DataUtils {
             return true;
         }
 
+        if (ids.contains((long) Notes.ID_ROOT_FOLDER)) {
+            Log.e(TAG, "Don't delete system folder root");
+        }
+        // one statement per chunk of ids, all chunks in the transaction of the batch
         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
-            if(id == Notes.ID_ROOT_FOLDER) {
-                Log.e(TAG, "Don't delete system folder root");
-                continue;
-            }
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-            operationList.add(builder.build());
+        for (String[] chunk : chunkIds(ids, (long) Notes.ID_ROOT_FOLDER)) {
+            operationList.add(ContentProviderOperation.newDelete(Notes.CONTENT_NOTE_URI)
+                    .withSelection(getIdSelection(chunk.length), chunk)
+                    .build());
+        }
+        if (operationList.isEmpty()) {
+            return true;
         }
         try {
             ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
@@ -88,12 +102,15 @@ public class DataUtils {
         }
 
         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-            builder.withValue(NoteColumns.PARENT_ID, folderId);
-            builder.withValue(NoteColumns.LOCAL_MODIFIED, 1);
-            operationList.add(builder.build());
+        for (String[] chunk : chunkIds(ids, null)) {
+            operationList.add(ContentProviderOperation.newUpdate(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.PARENT_ID, folderId)
+                    .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                    .withSelection(getIdSelection(chunk.length), chunk)
+                    .build());
+        }
+        if (operationList.isEmpty()) {
+            return true;
         }
 
         try {
@@ -111,26 +128,67 @@ public class DataUtils {
         return false;
     }
 
+    /**
+     * Split the ids into selection args of at most {@link #MAX_IDS_PER_STATEMENT} ids each,
+     * leaving out the excluded id
+     */
+    private static ArrayList<String[]> chunkIds(Collection<Long> ids, Long excludedId) {
+        ArrayList<String[]> chunks = new ArrayList<String[]>();
+        ArrayList<String> chunk = new ArrayList<String>(Math.min(ids.size(),
+                MAX_IDS_PER_STATEMENT));
+        for (Long id : ids) {
+            if (id == null || id.equals(excludedId)) {
+                continue;
+            }
+            chunk.add(String.valueOf(id));
+            if (chunk.size() == MAX_IDS_PER_STATEMENT) {
+                chunks.add(chunk.toArray(new String[chunk.size()]));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk.toArray(new String[chunk.size()]));
+        }
+        return chunks;
+    }
+
+    /**
+     * "_id IN (?,...)" with count parameters, full chunks share one compiled statement
+     */
+    private static String getIdSelection(int count) {
+        StringBuilder sb = new StringBuilder(NoteColumns.ID.length() + 6 + count * 2);
+        sb.append(NoteColumns.ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.append(')').toString();
+    }
+
     /**
      * Get the all folder count except system folders {@link Notes#TYPE_SYSTEM}}
      */
     public static int getUserFolderCount(ContentResolver resolver) {
-        Cursor cursor =resolver.query(Notes.CONTENT_NOTE_URI,
-                new String[] { "COUNT(*)" },
-                NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)},
+        // user folders all live in the root folder, read its folder count from the stats
+        Cursor cursor =resolver.query(
+                ContentUris.withAppendedId(Notes.CONTENT_FOLDER_STATS_URI, Notes.ID_ROOT_FOLDER),
+                new String[] { FolderStatsColumns.FOLDER_COUNT },
+                null,
+                null,
                 null);
 
         int count = 0;
         if(cursor != null) {
-            if(cursor.moveToFirst()) {
-                try {
+            try {
+                if(cursor.moveToFirst()) {
                     count = cursor.getInt(0);
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "get folder count failed:" + e.toString());
-                } finally {
-                    cursor.close();
                 }
+            } catch (IndexOutOfBoundsException e) {
+                Log.e(TAG, "get folder count failed:" + e.toString());
+            } finally {
+                cursor.close();
             }
         }
         return count;
@@ -154,7 +212,8 @@ public class DataUtils {
     }
 
     public static boolean existInNoteDatabase(ContentResolver resolver, long noteId) {
-        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+        Cursor cursor = resolver.query(includeDeleted(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId)),
                 null, null, null, null);
 
         boolean exist = false;
@@ -168,7 +227,8 @@ public class DataUtils {
     }
 
     public static boolean existInDataDatabase(ContentResolver resolver, long dataId) {
-        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
+        Cursor cursor = resolver.query(includeDeleted(
+                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId)),
                 null, null, null, null);
 
         boolean exist = false;
@@ -181,6 +241,55 @@ public class DataUtils {
         return exist;
     }
 
+    /**
+     * An id stays taken by a deleted note or data row until the purge removes it, so the
+     * existence checks ask for the deleted rows as well
+     */
+    private static Uri includeDeleted(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(Notes.PARAM_INCLUDE_DELETED, "true").build();
+    }
+
+    /**
+     * The ids of the collection which are taken by a note, one query per chunk of ids instead
+     * of {@link #existInNoteDatabase} for each of them
+     */
+    public static HashSet<Long> getExistingNoteIds(ContentResolver resolver,
+            Collection<Long> noteIds) {
+        return getExistingIds(resolver, Notes.CONTENT_NOTE_URI, noteIds);
+    }
+
+    /**
+     * The ids of the collection which are taken by a data row, see
+     * {@link #getExistingNoteIds}
+     */
+    public static HashSet<Long> getExistingDataIds(ContentResolver resolver,
+            Collection<Long> dataIds) {
+        return getExistingIds(resolver, Notes.CONTENT_DATA_URI, dataIds);
+    }
+
+    private static HashSet<Long> getExistingIds(ContentResolver resolver, Uri uri,
+            Collection<Long> ids) {
+        HashSet<Long> existing = new HashSet<Long>();
+        if (ids == null || ids.isEmpty()) {
+            return existing;
+        }
+        for (String[] chunk : chunkIds(ids, null)) {
+            Cursor cursor = resolver.query(includeDeleted(uri), new String[] { NoteColumns.ID },
+                    getIdSelection(chunk.length), chunk, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    existing.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return existing;
+    }
+
     public static boolean checkVisibleFolderName(ContentResolver resolver, String name) {
         Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, null,
                 NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
@@ -225,15 +334,18 @@ public class DataUtils {
     }
 
     public static String getCallNumberByNoteId(ContentResolver resolver, long noteId) {
+        // answered from the (note_id, mime_type, data3) index alone
         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
                 new String [] { CallNote.PHONE_NUMBER },
                 CallNote.NOTE_ID + "=? AND " + CallNote.MIME_TYPE + "=?",
                 new String [] { String.valueOf(noteId), CallNote.CONTENT_ITEM_TYPE },
                 null);
 
-        if (cursor != null && cursor.moveToFirst()) {
+        if (cursor != null) {
             try {
-                return cursor.getString(0);
+                if (cursor.moveToFirst()) {
+                    return cursor.getString(0);
+                }
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, "Get call number fails " + e.toString());
             } finally {
@@ -244,22 +356,27 @@ public class DataUtils {
     }
 
     public static long getNoteIdByPhoneNumberAndCallDate(ContentResolver resolver, String phoneNumber, long callDate) {
+        // the phone key finds the candidates through the index, PHONE_NUMBERS_EQUAL only
+        // compares the few rows left
         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
                 new String [] { CallNote.NOTE_ID },
-                CallNote.CALL_DATE + "=? AND " + CallNote.MIME_TYPE + "=? AND PHONE_NUMBERS_EQUAL("
-                + CallNote.PHONE_NUMBER + ",?)",
-                new String [] { String.valueOf(callDate), CallNote.CONTENT_ITEM_TYPE, phoneNumber },
+                CallNote.MIME_TYPE + "=? AND " + CallNote.PHONE_KEY + "=? AND "
+                + CallNote.CALL_DATE + "=? AND PHONE_NUMBERS_EQUAL(" + CallNote.PHONE_NUMBER + ",?)",
+                new String [] { CallNote.CONTENT_ITEM_TYPE,
+                        NotesDatabaseHelper.phoneKeyOf(phoneNumber), String.valueOf(callDate),
+                        phoneNumber },
                 null);
 
         if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                try {
+            try {
+                if (cursor.moveToFirst()) {
                     return cursor.getLong(0);
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "Get call note id fails " + e.toString());
                 }
+            } catch (IndexOutOfBoundsException e) {
+                Log.e(TAG, "Get call note id fails " + e.toString());
+            } finally {
+                cursor.close();
             }
-            cursor.close();
         }
         return 0;
     }
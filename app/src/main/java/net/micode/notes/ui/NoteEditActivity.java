@@ -75,6 +75,7 @@ import net.micode.notes.widget.NoteWidgetProvider_4x;
 
 import java.io.FileNotFoundException;
 import java.nio.channels.Selector;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -189,6 +190,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private String mUserQuery;
     private Pattern mPattern;
+    // 搜索结果中匹配词在笔记内容里的位置，全文索引offsets()的格式，为空时按查询词扫描全文
+    private String mMatchOffsets;
 <<<<<<< HEAD
     private TextView mWordCountTextView;
 =======
@@ -306,12 +309,19 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if (TextUtils.equals(Intent.ACTION_VIEW, intent.getAction())) {
             long noteId = intent.getLongExtra(Intent.EXTRA_UID, 0);
             mUserQuery = "";
+            mMatchOffsets = null;
 
             /**
              * Starting from the searched result
              */
             if (intent.hasExtra(SearchManager.EXTRA_DATA_KEY)) {
-                noteId = Long.parseLong(intent.getStringExtra(SearchManager.EXTRA_DATA_KEY));
+                String extra = intent.getStringExtra(SearchManager.EXTRA_DATA_KEY);
+                int separator = extra.indexOf(Notes.SEARCH_MATCH_SEPARATOR);
+                if (separator >= 0) {
+                    mMatchOffsets = extra.substring(separator + 1);
+                    extra = extra.substring(0, separator);
+                }
+                noteId = Long.parseLong(extra);
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
 
@@ -392,7 +402,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mWorkingNote.getContent());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            mNoteEditor.setText(getHighlightContentResult(mWorkingNote.getContent()));
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
@@ -1023,6 +1033,99 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mEditTextList.setVisibility(View.VISIBLE);
     }
 
+    // 高亮整篇笔记内容中的匹配词，优先使用搜索时得到的匹配位置，不必重新扫描全文
+    private Spannable getHighlightContentResult(String content) {
+        if (!TextUtils.isEmpty(mUserQuery) && !TextUtils.isEmpty(mMatchOffsets)
+                && content != null) {
+            int[] ranges = getMatchRanges(content, mMatchOffsets, mUserQuery);
+            if (ranges != null) {
+                SpannableString spannable = new SpannableString(content);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    spannable.setSpan(
+                            new BackgroundColorSpan(this.getResources().getColor(
+                                    R.color.user_query_highlight)), ranges[i], ranges[i + 1],
+                            Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+                }
+                return spannable;
+            }
+            // 内容已经改变，匹配位置不再可用
+            mMatchOffsets = null;
+        }
+        return getHighlightQueryResult(content, mUserQuery);
+    }
+
+    /**
+     * 把offsets()给出的UTF-8字节位置换算成字符位置，返回[起点, 终点, ...]。
+     * 只遍历到最后一个匹配为止；任何一个位置越界或者不是查询词开头时返回null
+     */
+    private static int[] getMatchRanges(String content, String offsets, String userQuery) {
+        String[] fields = offsets.trim().split(" ");
+        if (fields.length % 4 != 0) {
+            return null;
+        }
+        int count = fields.length / 4;
+        long[] byteRanges = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                int start = Integer.parseInt(fields[i * 4 + 2]);
+                int length = Integer.parseInt(fields[i * 4 + 3]);
+                // 按起点排序，高位存起点，低位存长度
+                byteRanges[i] = ((long) start << 32) | length;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Arrays.sort(byteRanges);
+
+        int[] ranges = new int[count * 2];
+        int next = 0;
+        int bytes = 0;
+        int index = 0;
+        int length = content.length();
+        while (next < count * 2 && index <= length) {
+            long target = next % 2 == 0 ? byteRanges[next / 2] >>> 32
+                    : (byteRanges[next / 2] >>> 32) + (int) byteRanges[next / 2];
+            if (bytes == target) {
+                ranges[next++] = index;
+                continue;
+            }
+            if (bytes > target || index == length) {
+                // 落在一个字符的中间或者超出了内容
+                return null;
+            }
+            char c = content.charAt(index);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && index + 1 < length
+                    && Character.isLowSurrogate(content.charAt(index + 1))) {
+                bytes += 4;
+                index++;
+            } else {
+                bytes += 3;
+            }
+            index++;
+        }
+
+        String[] words = userQuery.toLowerCase().trim().split("\\s+");
+        for (int i = 0; i < ranges.length; i += 2) {
+            String hit = content.substring(ranges[i], ranges[i + 1]).toLowerCase();
+            boolean matched = false;
+            for (String word : words) {
+                word = word.replace("\"", "");
+                if (word.length() > 0 && hit.startsWith(word)) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
     private Spannable getHighlightQueryResult(String fullText, String userQuery) {
         SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
         if (!TextUtils.isEmpty(userQuery)) {
@@ -1091,7 +1194,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
                         ""));
             }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            mNoteEditor.setText(getHighlightContentResult(mWorkingNote.getContent()));
             mEditTextList.setVisibility(View.GONE);
             mNoteEditor.setVisibility(View.VISIBLE);
         }
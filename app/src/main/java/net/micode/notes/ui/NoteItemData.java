@@ -22,7 +22,9 @@ import android.text.TextUtils;
 
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.FolderStatsColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 import net.micode.notes.tool.DataUtils;
 
 /**
@@ -37,9 +39,15 @@ public class NoteItemData {
             NoteColumns.CREATED_DATE,     // 创建日期
             NoteColumns.HAS_ATTACHMENT,   // 是否有附件
             NoteColumns.MODIFIED_DATE,    // 修改日期
-            NoteColumns.NOTES_COUNT,      // 笔记数量
+            // 笔记数量，从文件夹统计表中读取
+            "IFNULL((SELECT " + FolderStatsColumns.NOTES_COUNT + " FROM " + TABLE.FOLDER_STATS
+                    + " WHERE " + FolderStatsColumns.FOLDER_ID + "=" + TABLE.NOTE + "."
+                    + NoteColumns.ID + "),0) AS " + NoteColumns.NOTES_COUNT,
             NoteColumns.PARENT_ID,        // 父文件夹ID
-            NoteColumns.SNIPPET,         // 笔记片段
+            // 笔记片段：笔记取有长度上限的预览，文件夹取名称
+            "CASE WHEN " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " THEN "
+                    + NoteColumns.PREVIEW + " ELSE " + NoteColumns.SNIPPET + " END AS "
+                    + NoteColumns.SNIPPET,
             NoteColumns.TYPE,             // 笔记类型
             NoteColumns.WIDGET_ID,        // 小部件ID
             NoteColumns.WIDGET_TYPE,      // 小部件类型
@@ -94,9 +102,7 @@ public class NoteItemData {
         mModifiedDate = cursor.getLong(MODIFIED_DATE_COLUMN); // 获取修改日期
         mNotesCount = cursor.getInt(NOTES_COUNT_COLUMN); // 获取笔记数量
         mParentId = cursor.getLong(PARENT_ID_COLUMN); // 获取父文件夹ID
-        mSnippet = cursor.getString(SNIPPET_COLUMN); // 获取笔记片段
-        mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
-                NoteEditActivity.TAG_UNCHECKED, ""); // 移除标记
+        mSnippet = cursor.getString(SNIPPET_COLUMN); // 获取笔记片段，预览中已经去掉了清单标记
 
         mType = cursor.getInt(TYPE_COLUMN); // 获取笔记类型
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN); // 获取小部件ID
@@ -238,4 +244,10 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN); // 获取笔记类型
     }
+
+    // 获取分页查询使用的键"type,modified_date,_id"，下一页从该记录之后开始
+    public static String getPageKey(Cursor cursor) {
+        return cursor.getInt(TYPE_COLUMN) + "," + cursor.getLong(MODIFIED_DATE_COLUMN) + ","
+                + cursor.getLong(ID_COLUMN);
+    }
 }
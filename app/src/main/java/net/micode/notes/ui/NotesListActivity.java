@@ -28,6 +28,8 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -53,6 +55,8 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -61,8 +65,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderRegistry;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.FolderStatsColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
@@ -88,7 +95,10 @@ import java.nio.charset.Charset;
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
     private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;
 
-    private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
+    private static final int FOLDER_NOTE_PAGE_QUERY_TOKEN = 2;
+
+    // 距离列表末尾还剩多少项时开始加载下一页
+    private static final int PAGE_PREFETCH_DISTANCE = 20;
 
     private static final int MENU_FOLDER_DELETE = 0;
 
@@ -122,6 +132,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private long mCurrentFolderId;
 
+    private boolean mPendingSelectAll; // 全选时正在等待其余笔记加载
+
     private ContentResolver mContentResolver;
 
     private ModeCallback mModeCallBack;
@@ -136,8 +148,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
             + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND EXISTS(SELECT 1 FROM "
+            + TABLE.FOLDER_STATS + " WHERE " + FolderStatsColumns.FOLDER_ID + "="
+            + Notes.ID_CALL_RECORD_FOLDER + " AND " + FolderStatsColumns.NOTES_COUNT + ">0))";
 
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
@@ -226,7 +239,23 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnReloadListener(new NotesListAdapter.OnReloadListener() {
+            public void onReload(int loadedCount) {
+                startAsyncNotesListQuery(mPendingSelectAll ? Integer.MAX_VALUE : loadedCount);
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
+        mNotesListView.setOnScrollListener(new OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_DISTANCE) {
+                    startAsyncNextPageQuery();
+                }
+            }
+        });
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
         mAddNewNote.setOnTouchListener(new NewNoteOnTouchListener());
@@ -248,7 +277,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             menu.findItem(R.id.delete).setOnMenuItemClickListener(this);
             mMoveMenu = menu.findItem(R.id.move);
             if (mFocusNoteDataItem.getParentId() == Notes.ID_CALL_RECORD_FOLDER
-                    || DataUtils.getUserFolderCount(mContentResolver) == 0) {
+                    || FolderRegistry.getInstance(NotesListActivity.this)
+                            .getUserFolderCount() == 0) {
                 mMoveMenu.setVisible(false);
             } else {
                 mMoveMenu.setVisible(true);
@@ -267,7 +297,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     R.menu.note_list_dropdown);
             mDropDownMenu.setOnDropdownMenuItemClickListener(new PopupMenu.OnMenuItemClickListener(){
                 public boolean onMenuItemClick(MenuItem item) {
-                    mNotesListAdapter.selectAll(!mNotesListAdapter.isAllSelected());
+                    boolean checked = !mNotesListAdapter.isAllSelected();
+                    if (checked && mNotesListAdapter.hasMorePages()) {
+                        // 只加载了部分页，先查询出文件夹中的全部笔记，查询完成后再全选
+                        mPendingSelectAll = true;
+                        startAsyncNotesListQuery(Integer.MAX_VALUE);
+                        return true;
+                    }
+                    mNotesListAdapter.selectAll(checked);
                     updateMenu();
                     return true;
                 }
@@ -304,6 +341,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }
 
         public void onDestroyActionMode(ActionMode mode) {
+            mPendingSelectAll = false;
             mNotesListAdapter.setChoiceMode(false);
             mNotesListView.setLongClickable(true);
             mAddNewNote.setVisibility(View.VISIBLE);
@@ -416,12 +454,40 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
+        startAsyncNotesListQuery(NotesListAdapter.PAGE_SIZE);
+    }
+
+    // 从头查询当前文件夹的笔记列表，只取前limit条，其余的在滚动时分页加载
+    private void startAsyncNotesListQuery(int limit) {
+        // 尚未开始的旧查询已经过时，新的查询会替换掉它们的结果
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_PAGE_QUERY_TOKEN);
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(limit)).build();
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, limit,
+                uri, NoteItemData.PROJECTION, getNotesListSelection(), new String[] {
                     String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                }, null);
+    }
+
+    // 加载下一页，已经在加载或没有更多数据时不做任何事
+    private void startAsyncNextPageQuery() {
+        String after = mNotesListAdapter.startNextPage();
+        if (after == null) {
+            return;
+        }
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_LIMIT, String.valueOf(NotesListAdapter.PAGE_SIZE))
+                .appendQueryParameter(Notes.PARAM_AFTER, after).build();
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_PAGE_QUERY_TOKEN, null,
+                uri, NoteItemData.PROJECTION, getNotesListSelection(), new String[] {
+                    String.valueOf(mCurrentFolderId)
+                }, null);
+    }
+
+    private String getNotesListSelection() {
+        return (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
+                : NORMAL_SELECTION;
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -433,15 +499,17 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
-                    break;
-                case FOLDER_LIST_QUERY_TOKEN:
-                    if (cursor != null && cursor.getCount() > 0) {
-                        showFolderListMenu(cursor);
-                    } else {
-                        Log.e(TAG, "Query folder failed");
+                    mNotesListAdapter.changePagedCursor(cursor, (Integer) cookie);
+                    if (mPendingSelectAll) {
+                        // 全部笔记已加载，完成等待中的全选
+                        mPendingSelectAll = false;
+                        mNotesListAdapter.selectAll(true);
+                        mModeCallBack.updateMenu();
                     }
                     break;
+                case FOLDER_NOTE_PAGE_QUERY_TOKEN:
+                    mNotesListAdapter.appendPage(cursor);
+                    break;
                 default:
                     return;
             }
@@ -672,7 +740,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             public void onClick(View v) {
                 hideSoftInput(etName);
                 String name = etName.getText().toString();
-                if (DataUtils.checkVisibleFolderName(mContentResolver, name)) {
+                if (FolderRegistry.getInstance(NotesListActivity.this).hasUserFolderNamed(name)) {
                     Toast.makeText(NotesListActivity.this, getString(R.string.folder_exist, name),
                             Toast.LENGTH_LONG).show();
                     etName.setSelection(0, etName.length());
@@ -1094,21 +1162,21 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void startQueryDestinationFolders() {
-        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
-        selection = (mState == ListEditState.NOTE_LIST) ? selection:
-            "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
-
-        mBackgroundQueryHandler.startQuery(FOLDER_LIST_QUERY_TOKEN,
-                null,
-                Notes.CONTENT_NOTE_URI,
-                FoldersListAdapter.PROJECTION,
-                selection,
-                new String[] {
-                        String.valueOf(Notes.TYPE_FOLDER),
-                        String.valueOf(Notes.ID_TRASH_FOLER),
-                        String.valueOf(mCurrentFolderId)
-                },
-                NoteColumns.MODIFIED_DATE + " DESC");
+        // 文件夹信息已在内存中，直接生成目标文件夹列表
+        MatrixCursor cursor = new MatrixCursor(FoldersListAdapter.getProjection());
+        if (mState != ListEditState.NOTE_LIST) {
+            cursor.addRow(new Object[] { Notes.ID_ROOT_FOLDER, null });
+        }
+        for (FolderRegistry.Folder folder : FolderRegistry.getInstance(this).getUserFolders()) {
+            if (folder.id != mCurrentFolderId) {
+                cursor.addRow(new Object[] { folder.id, folder.name });
+            }
+        }
+        if (cursor.getCount() > 0) {
+            showFolderListMenu(cursor);
+        } else {
+            Log.e(TAG, "Query folder failed");
+        }
     }
 
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
@@ -18,6 +18,7 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -25,6 +26,7 @@ import android.widget.CursorAdapter;
 
 import net.micode.notes.data.Notes;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,6 +42,19 @@ public class NotesListAdapter extends CursorAdapter {
     private int mNotesCount; // 笔记数量
     private boolean mChoiceMode; // 是否选择模式
 
+    public static final int PAGE_SIZE = 100; // 分页加载时每页的条数
+    private ArrayList<Cursor> mPages; // 已加载的各页光标
+    private boolean mHasMorePages; // 是否还有未加载的页
+    private boolean mPageLoading; // 是否正在加载下一页
+    private boolean mReloadPending; // 是否已请求重新查询且结果尚未返回
+    private OnReloadListener mOnReloadListener; // 内容变化时的重新查询回调
+
+    // 分页加载时内容变化的回调接口，由调用者按已加载的条数重新查询，
+    // 而不是逐页requery（各页的起始键在内容变化后可能已经失效）
+    public interface OnReloadListener {
+        void onReload(int loadedCount);
+    }
+
     // 小部件属性类
     public static class AppWidgetAttribute {
         public int widgetId; // 小部件ID
@@ -52,6 +67,59 @@ public class NotesListAdapter extends CursorAdapter {
         mSelectedIndex = new HashMap<Integer, Boolean>(); // 初始化选中项索引
         mContext = context;
         mNotesCount = 0; // 初始化笔记数量
+        mPages = new ArrayList<Cursor>();
+    }
+
+    // 设置内容变化时的重新查询回调
+    public void setOnReloadListener(OnReloadListener listener) {
+        mOnReloadListener = listener;
+    }
+
+    // 替换为重新查询得到的光标，limit为该次查询请求的条数
+    public void changePagedCursor(Cursor cursor, int limit) {
+        mPages.clear();
+        if (cursor != null) {
+            mPages.add(cursor);
+        }
+        mHasMorePages = cursor != null && cursor.getCount() >= limit;
+        mPageLoading = false;
+        mReloadPending = false;
+        changeCursor(cursor);
+    }
+
+    // 开始加载下一页，返回下一页的起始键；没有更多数据或正在加载时返回null
+    public String startNextPage() {
+        if (!mHasMorePages || mPageLoading) {
+            return null;
+        }
+        Cursor cursor = getCursor();
+        if (cursor == null || !cursor.moveToLast()) {
+            return null;
+        }
+        mPageLoading = true;
+        return NoteItemData.getPageKey(cursor);
+    }
+
+    // 是否还有未加载的页，全选前需要先把其余的笔记都查询出来
+    public boolean hasMorePages() {
+        return mHasMorePages;
+    }
+
+    // 把加载到的下一页拼接到已有数据之后
+    public void appendPage(Cursor page) {
+        mPageLoading = false;
+        if (page == null) {
+            return;
+        }
+        mHasMorePages = page.getCount() >= PAGE_SIZE;
+        if (page.getCount() == 0 || mPages.isEmpty()) {
+            page.close();
+            return;
+        }
+        mPages.add(page);
+        // 不能用changeCursor，关闭旧的MergeCursor会把已加载的页一起关闭
+        swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        calcNotesCount();
     }
 
     // 创建新视图
@@ -93,10 +161,11 @@ public class NotesListAdapter extends CursorAdapter {
         for (int i = 0; i < getCount(); i++) {
             if (cursor.moveToPosition(i)) {
                 if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) { // 如果是笔记类型
-                    setCheckedItem(i, checked); // 设置选中状态
+                    mSelectedIndex.put(i, checked); // 设置选中状态
                 }
             }
         }
+        notifyDataSetChanged(); // 全部设置完后只通知一次
     }
 
     // 获取选中项的ID集合
@@ -155,10 +224,11 @@ public class NotesListAdapter extends CursorAdapter {
         return count; // 返回选中项数量
     }
 
-    // 检查是否所有项都已选中
+    // 检查是否所有项都已选中，还有未加载的页时不算全选
     public boolean isAllSelected() {
         int checkedCount = getSelectedCount(); // 获取选中项数量
-        return (checkedCount != 0 && checkedCount == mNotesCount); // 返回是否所有项均被选中
+        // 返回是否所有项均被选中
+        return (!mHasMorePages && checkedCount != 0 && checkedCount == mNotesCount);
     }
 
     // 检查指定位置的项是否被选中
@@ -172,6 +242,14 @@ public class NotesListAdapter extends CursorAdapter {
     // 内容变化时的回调
     @Override
     protected void onContentChanged() {
+        if (mOnReloadListener != null) {
+            // MergeCursor的每一页都会收到同一次变化的通知，结果返回前只重新查询一次
+            if (!mReloadPending) {
+                mReloadPending = true;
+                mOnReloadListener.onReload(Math.max(getCount(), PAGE_SIZE)); // 按已加载的条数重新查询
+            }
+            return;
+        }
         super.onContentChanged();
         calcNotesCount(); // 重新计算笔记数量
     }
@@ -36,7 +36,7 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
+        NoteColumns.PREVIEW
     };
 
     public static final int COLUMN_ID           = 0;